@@ -0,0 +1,249 @@
+package com.vdisk.net;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.vdisk.net.VDiskAPI.Entry;
+
+/**
+ * 比较{@link Entry#Entry(Map)}新旧两种解析方式的速度，并检查两者结果一致。不属于SDK，不要打包到应用中。
+ *
+ * Compares the speed of {@link Entry#Entry(Map)} with the field by field
+ * lookups it replaced, and checks that both give the same entries. It's not
+ * part of the SDK and isn't built with it.
+ *
+ * Run it on the JVM with the SDK classes and json_simple on the classpath:
+ *
+ * <pre>
+ * java com.vdisk.net.EntryExtractionBench [delta.json|-] [rounds]
+ * </pre>
+ *
+ * where delta.json is a recorded /delta response. Without one, or with "-", a
+ * page of 10000 entries shaped like a /delta response is generated.
+ */
+public class EntryExtractionBench {
+
+	private static final int GENERATED_ENTRIES = 10000;
+
+	public static void main(String[] args) throws Exception {
+		JSONObject page;
+		if (args.length > 0 && !args[0].equals("-")) {
+			Reader reader = new InputStreamReader(new FileInputStream(args[0]),
+					"UTF-8");
+			try {
+				page = (JSONObject) new JSONParser().parse(reader);
+			} finally {
+				reader.close();
+			}
+		} else {
+			page = generatePage(GENERATED_ENTRIES);
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		List<Map<String, Object>> maps = metadataOf(page);
+		System.out.println("entries: " + maps.size());
+
+		// 检查结果一致 // Check both give the same entries
+		for (Map<String, Object> map : maps) {
+			String diff = diff(legacyEntry(map), new Entry(map));
+			if (diff != null) {
+				throw new AssertionError(map.get("path") + ": " + diff);
+			}
+		}
+
+		// 交替先后运行，取最快的一次，前几次作为预热 // Alternate which runs
+		// first and keep the fastest, the first runs warm up
+		long legacy = Long.MAX_VALUE;
+		long current = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			if (i % 2 == 0) {
+				legacy = Math.min(legacy, run(maps, true, rounds));
+				current = Math.min(current, run(maps, false, rounds));
+			} else {
+				current = Math.min(current, run(maps, false, rounds));
+				legacy = Math.min(legacy, run(maps, true, rounds));
+			}
+		}
+		System.out.println("legacy:  " + legacy / rounds / 1000 + " us/page");
+		System.out.println("current: " + current / rounds / 1000 + " us/page");
+	}
+
+	/**
+	 * Returns the nanoseconds taken to extract the entries the given rounds.
+	 */
+	private static long run(List<Map<String, Object>> maps, boolean isLegacy,
+			int rounds) {
+		int sink = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			for (Map<String, Object> map : maps) {
+				Entry entry = isLegacy ? legacyEntry(map) : new Entry(map);
+				sink += entry.path.length();
+			}
+		}
+		long time = System.nanoTime() - start;
+		if (sink == 0) {
+			System.out.println();
+		}
+		return time;
+	}
+
+	/**
+	 * Entry(Map) as it was, with one map lookup per field.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Entry legacyEntry(Map<String, Object> map) {
+		Entry entry = new Entry();
+		entry.bytes = VDiskAPI.getFromMapAsLong(map, "bytes");
+		entry.hash = (String) map.get("hash");
+		entry.icon = VDiskAPI.getFromMapAsString(map, "icon");
+		entry.isDir = VDiskAPI.getFromMapAsBoolean(map, "is_dir");
+		entry.modified = (String) map.get("modified");
+		entry.clientMtime = (String) map.get("client_mtime");
+		entry.path = (String) map.get("path");
+		entry.root = (String) map.get("root");
+		entry.size = (String) map.get("size");
+		entry.mimeType = (String) map.get("mime_type");
+		entry.rev = VDiskAPI.getFromMapAsString(map, "rev");
+		entry.revision = VDiskAPI.getFromMapAsString(map, "revision");
+		entry.md5 = (String) map.get("md5");
+		entry.sha1 = (String) map.get("sha1");
+		entry.thumbExists = VDiskAPI.getFromMapAsBoolean(map, "thumb_exists");
+		entry.isDeleted = VDiskAPI.getFromMapAsBoolean(map, "is_deleted");
+		entry.thumb = (String) map.get("thumb");
+
+		Object json_contents = map.get("contents");
+		if (json_contents != null && json_contents instanceof JSONArray) {
+			entry.contents = new ArrayList<Entry>();
+			Object child;
+			Iterator<?> it = ((JSONArray) json_contents).iterator();
+			while (it.hasNext()) {
+				child = it.next();
+				if (child instanceof Map) {
+					entry.contents.add(legacyEntry((Map<String, Object>) child));
+				}
+			}
+		} else {
+			entry.contents = null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the first field which differs, or null.
+	 */
+	private static String diff(Entry a, Entry b) {
+		if (a.bytes != b.bytes) {
+			return "bytes";
+		}
+		if (a.isDir != b.isDir) {
+			return "is_dir";
+		}
+		if (a.thumbExists != b.thumbExists) {
+			return "thumb_exists";
+		}
+		if (a.isDeleted != b.isDeleted) {
+			return "is_deleted";
+		}
+		String[] names = { "hash", "icon", "modified", "client_mtime", "path",
+				"root", "size", "mime_type", "rev", "revision", "md5", "sha1",
+				"thumb" };
+		String[] as = { a.hash, a.icon, a.modified, a.clientMtime, a.path,
+				a.root, a.size, a.mimeType, a.rev, a.revision, a.md5, a.sha1,
+				a.thumb };
+		String[] bs = { b.hash, b.icon, b.modified, b.clientMtime, b.path,
+				b.root, b.size, b.mimeType, b.rev, b.revision, b.md5, b.sha1,
+				b.thumb };
+		for (int i = 0; i < names.length; i++) {
+			if (as[i] == null ? bs[i] != null : !as[i].equals(bs[i])) {
+				return names[i];
+			}
+		}
+		if ((a.contents == null) != (b.contents == null)) {
+			return "contents";
+		}
+		if (a.contents != null) {
+			if (a.contents.size() != b.contents.size()) {
+				return "contents";
+			}
+			for (int i = 0; i < a.contents.size(); i++) {
+				String diff = diff(a.contents.get(i), b.contents.get(i));
+				if (diff != null) {
+					return "contents/" + i + "/" + diff;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the metadata of the entries of a delta page, without the
+	 * deleted ones.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> metadataOf(JSONObject page) {
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+		for (Object o : (JSONArray) page.get("entries")) {
+			Object metadata = ((List<Object>) o).get(1);
+			if (metadata instanceof Map) {
+				maps.add((Map<String, Object>) metadata);
+			}
+		}
+		return maps;
+	}
+
+	/**
+	 * Generates a delta page of files and folders, parsed from its JSON text
+	 * so the values have the types the parser gives them.
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONObject generatePage(int count) throws Exception {
+		JSONArray entries = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			boolean isDir = i % 10 == 0;
+			String path = "/Photos/" + (i / 100) + "/IMG_" + i
+					+ (isDir ? "" : ".JPG");
+
+			JSONObject metadata = new JSONObject();
+			metadata.put("size", isDir ? "0 bytes" : (i * 37 % 4096) + " KB");
+			metadata.put("rev", Long.toHexString(0x10000000L + i));
+			metadata.put("revision", Long.valueOf(0x10000000L + i));
+			metadata.put("thumb_exists", Boolean.valueOf(!isDir));
+			metadata.put("bytes", Long.valueOf(isDir ? 0 : i * 37L * 1024));
+			metadata.put("modified", "Wed, 14 Oct 2026 08:00:00 +0000");
+			metadata.put("path", path);
+			metadata.put("is_dir", Boolean.valueOf(isDir));
+			metadata.put("icon", isDir ? "folder" : "page_white_picture");
+			metadata.put("root", "basic");
+			if (!isDir) {
+				metadata.put("mime_type", "image/jpeg");
+				metadata.put("md5", String.format("%032x", i));
+				metadata.put("sha1", String.format("%040x", i));
+				metadata.put("client_mtime", "Wed, 14 Oct 2026 07:59:00 +0000");
+			} else {
+				metadata.put("hash", String.format("%032x", i));
+			}
+
+			JSONArray entry = new JSONArray();
+			entry.add(path.toLowerCase());
+			entry.add(metadata);
+			entries.add(entry);
+		}
+
+		JSONObject page = new JSONObject();
+		page.put("entries", entries);
+		page.put("reset", Boolean.FALSE);
+		page.put("cursor", "bench");
+		page.put("has_more", Boolean.FALSE);
+		return (JSONObject) new JSONParser().parse(page.toJSONString());
+	}
+}
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.content.Context;
 import android.util.Log;
@@ -17,6 +19,7 @@ import com.vdisk.net.VDiskAPI.VDiskUploadFileInfo;
 import com.vdisk.net.exception.VDiskException;
 import com.vdisk.net.exception.VDiskPartialFileException;
 import com.vdisk.utils.Digest;
+import com.vdisk.utils.Digest.FileDigest;
 
 /**
  * 此类在整个上传回话中起到了控制协调的作用。通过此类，可以实时得到当前大文件上传的状态，可以实时得到当前文件的上传进度， 可以中断上传行为。
@@ -34,11 +37,11 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 
 	private static final String TAG = "ComplexUploadHandler";
 
-	private UploadRequest mRequest;
+	private final Set<UploadRequest> mRequests = new HashSet<UploadRequest>();
 
 	private Context mContext;
 
-	private boolean isCanceled;
+	private volatile boolean isCanceled;
 
 	public enum ComplexUploadStatus {
 
@@ -103,6 +106,11 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 	 * 
 	 * @param total
 	 *            当前分段的总长度 Total size of current segment
+	 * 
+	 *            多个分段并行上传时，此方法会在上传线程中被调用
+	 * 
+	 *            When several segments are uploaded at the same time, this
+	 *            method is called from the upload threads.
 	 */
 	@Override
 	public void onProgress(long bytes, long total) {
@@ -151,7 +159,8 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 
 		if (serStr != null) {
 			VDiskUploadFileInfo fileInfo = (VDiskUploadFileInfo) deserialize(serStr);
-			Log.d(TAG, "readUploadFileInfo-->" + fileInfo.point);
+			Log.d(TAG, "readUploadFileInfo-->" + fileInfo.getUploadedCount()
+					+ "/" + fileInfo.segmentNum);
 			return fileInfo;
 		}
 
@@ -192,6 +201,10 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 	 * Compute md5 of each segment file and append them to a string separated by
 	 * ",".
 	 * 
+	 * The upload calls it, after computing sha1 on its own, only if a subclass
+	 * overrides it; otherwise the md5s are computed along with sha1 by
+	 * {@link #makeDigests}.
+	 * 
 	 * @param srcPath
 	 *            本地文件路径 Path of local file
 	 * @param fileSize
@@ -205,15 +218,53 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 			throws VDiskException {
 		ArrayList<String> md5s = Digest.getFileMD5s(srcPath, fileSize,
 				segmentLength);
+		return Digest.join(md5s);
+	}
 
-		StringBuilder sb = new StringBuilder();
-		int size = md5s.size();
-		for (int i = 0; i < size; i++) {
-			sb.append(md5s.get(i) + ",");
-		}
+	/**
+	 * 读取一次文件，同时计算文件的sha1和每一个分段文件的md5，通过onDigestProgress()回调计算进度。
+	 * 
+	 * Compute sha1 of the file and md5 of each segment file in a single read
+	 * of the file. The progress is reported by onDigestProgress().
+	 * 
+	 * @param srcPath
+	 *            本地文件路径 Path of local file
+	 * @param fileSize
+	 *            本地文件长度 Size of local file
+	 * @param segmentLength
+	 *            每段文件的长度 Length of each file segment
+	 * @return
+	 * @throws VDiskException
+	 */
+	public FileDigest makeDigests(String srcPath, long fileSize,
+			long segmentLength) throws VDiskException {
+		return Digest.digestFile(srcPath, fileSize, segmentLength,
+				new ProgressListener() {
+
+					@Override
+					public void onProgress(long bytes, long total) {
+						onDigestProgress(bytes, total);
+					}
+
+					@Override
+					public long progressInterval() {
+						return ComplexUploadHandler.this.progressInterval();
+					}
+				});
+	}
+
+	/**
+	 * 此回调方法可以得到计算sha1和md5的进度
+	 * 
+	 * Callback to get the progress of computing sha1 and md5s.
+	 * 
+	 * @param bytes
+	 *            已经计算的字节数 Number of bytes hashed
+	 * @param total
+	 *            本地文件长度 Size of local file
+	 */
+	public void onDigestProgress(long bytes, long total) {
 
-		String md5sString = sb.toString();
-		return md5sString.substring(0, md5sString.length() - 1);
 	}
 
 	/**
@@ -224,21 +275,55 @@ public abstract class ComplexUploadHandler extends ProgressListener {
 	public void abort() {
 		isCanceled = true;
 
-		if (mRequest != null) {
+		final UploadRequest[] requests;
+		synchronized (mRequests) {
+			requests = mRequests.toArray(new UploadRequest[mRequests.size()]);
+		}
+
+		if (requests.length > 0) {
 			// 4.0系统网络操作需放到子线程执行，避免发生NetworkOnMainThreadException异常。
 			// In Android4.0, network operations need to be executed in a child
 			// thread to avoid NetworkOnMainThreadException.
 			new Thread() {
 				@Override
 				public void run() {
-					mRequest.abort();
+					for (UploadRequest request : requests) {
+						request.abort();
+					}
 				}
 			}.start();
 		}
 	}
 
+	/**
+	 * 登记一个正在进行的分段上传请求，调用abort()时会中断所有已登记的请求
+	 * 
+	 * Register an in-flight segment upload request. All registered requests
+	 * are aborted when abort() is called.
+	 * 
+	 * @param request
+	 */
 	public void setUploadRequest(UploadRequest request) {
-		this.mRequest = request;
+		synchronized (mRequests) {
+			mRequests.add(request);
+		}
+
+		if (isCanceled) {
+			request.abort();
+		}
+	}
+
+	/**
+	 * 分段上传结束后移除对应的请求
+	 * 
+	 * Unregister a segment upload request after it finished.
+	 * 
+	 * @param request
+	 */
+	public void removeUploadRequest(UploadRequest request) {
+		synchronized (mRequests) {
+			mRequests.remove(request);
+		}
 	}
 
 	public boolean isCanceled() {
@@ -0,0 +1,225 @@
+package com.vdisk.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.vdisk.net.VDiskAPI;
+import com.vdisk.net.VDiskAPI.DeltaCursor;
+import com.vdisk.net.VDiskAPI.DeltaEntry;
+import com.vdisk.net.VDiskAPI.DeltaVisitor;
+import com.vdisk.net.VDiskAPI.Entry;
+import com.vdisk.net.exception.VDiskException;
+
+/**
+ * 基于delta接口的增量同步。逐页获取delta，分批把每一页应用到{@link VDiskDB}的元数据表，并在最后一批中保存cursor，
+ * 处理reset，并通过{@link SyncListener}通知变化。用来代替对整个目录树的metadata()扫描。
+ *
+ * Incremental sync based on the delta API. Pages through delta, applies each
+ * page to the metadata table of {@link VDiskDB} in batches, saving the cursor
+ * with the last batch of the page, handles reset and reports the changes to a
+ * {@link SyncListener}. Use it instead of rescanning the whole folder tree by
+ * metadata().
+ */
+public class DeltaSync {
+
+	private static final String TAG = "DeltaSync";
+
+	private static final String DEFAULT_CURSOR_KEY = "delta_cursor";
+
+	/**
+	 * The max entries applied in one transaction.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	/**
+	 * Receives the changes applied by {@link DeltaSync#sync()}. The methods
+	 * are called on the thread calling sync(), after the batch containing the
+	 * changes has been saved. If the page fails, the changes of its saved
+	 * batches are reported again by the next sync.
+	 */
+	public interface SyncListener {
+
+		/**
+		 * The local metadata has been cleared because the server asked to
+		 * reset.
+		 */
+		public void onReset();
+
+		/**
+		 * A file or folder changed.
+		 *
+		 * @param lcPath
+		 *            the lower case path.
+		 * @param metadata
+		 *            the new metadata, or null if the path has been deleted
+		 *            with all its children.
+		 */
+		public void onEntryChanged(String lcPath, Entry metadata);
+
+		/**
+		 * All the pages available have been applied.
+		 *
+		 * @param cursor
+		 *            the saved cursor.
+		 */
+		public void onSyncFinished(String cursor);
+	}
+
+	private final VDiskAPI<?> api;
+	private final VDiskDB db;
+	private final String cursorKey;
+	private SyncListener listener;
+
+	private volatile boolean isCanceled;
+
+	/**
+	 * Syncs a single account, whose cursor and metadata are saved with the
+	 * key "delta_cursor".
+	 */
+	public DeltaSync(Context ctx, VDiskAPI<?> api) {
+		this(ctx, api, DEFAULT_CURSOR_KEY);
+	}
+
+	/**
+	 * @param ctx
+	 * @param api
+	 * @param cursorKey
+	 *            the key of the account, which the cursor and the metadata of
+	 *            the account are saved with. Use different keys for different
+	 *            accounts, e.g. the uid, and read their metadata from
+	 *            {@link VDiskDB} with the same key.
+	 */
+	public DeltaSync(Context ctx, VDiskAPI<?> api, String cursorKey) {
+		this.api = api;
+		this.db = VDiskDB.getInstance(ctx);
+		this.cursorKey = cursorKey;
+	}
+
+	public void setSyncListener(SyncListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the saved cursor, or null if it has never synced.
+	 */
+	public String getCursor() {
+		return db.readSyncState(cursorKey);
+	}
+
+	/**
+	 * Pages through delta from the saved cursor until there are no more
+	 * entries, applying and saving each page. The entries are written to the
+	 * database in batches while the page is downloading, each batch in its
+	 * own short transaction, so a page of any size is synced in bounded
+	 * memory and the database isn't locked while waiting for the network. The
+	 * cursor is saved with the last batch of the page. If it fails in the
+	 * middle, the next sync gets the page again from the saved cursor and
+	 * applies it again over the batches already saved, which gives the same
+	 * metadata since every entry replaces or deletes its path.
+	 *
+	 * @return the number of entries applied.
+	 * @throws VDiskException
+	 */
+	public int sync() throws VDiskException {
+		isCanceled = false;
+		String cursor = db.readSyncState(cursorKey);
+		int count = 0;
+
+		DeltaCursor result;
+		do {
+			final Batch batch = new Batch();
+			result = api.delta(cursor, new DeltaVisitor() {
+				public void onReset() {
+					batch.isReset = true;
+				}
+
+				public void onDeltaEntry(DeltaEntry<Entry> entry) {
+					batch.entries.add(entry);
+					if (batch.entries.size() >= BATCH_SIZE) {
+						applyBatch(batch, null);
+					}
+				}
+			});
+			applyBatch(batch, result.cursor);
+
+			cursor = result.cursor;
+			count += result.entryCount;
+
+			Log.d(TAG, "applied " + result.entryCount + " entries, reset-->"
+					+ result.reset + ";hasMore-->" + result.hasMore);
+		} while (result.hasMore && !isCanceled);
+
+		SyncListener l = listener;
+		if (l != null && !result.hasMore) {
+			l.onSyncFinished(cursor);
+		}
+
+		return count;
+	}
+
+	/**
+	 * The entries of a page buffered until they are applied.
+	 */
+	private static final class Batch {
+		boolean isReset;
+		final List<DeltaEntry<Entry>> entries = new ArrayList<DeltaEntry<Entry>>();
+	}
+
+	/**
+	 * Applies the buffered entries in one transaction, then reports them and
+	 * empties the batch.
+	 *
+	 * @param cursor
+	 *            the cursor to save with the entries, or null if the page has
+	 *            more entries.
+	 */
+	private void applyBatch(Batch batch, String cursor) {
+		VDiskDB.DeltaPageWriter writer = db.beginDeltaPage(cursorKey);
+		try {
+			if (batch.isReset) {
+				writer.reset();
+			}
+			for (DeltaEntry<Entry> entry : batch.entries) {
+				writer.apply(entry);
+			}
+			if (cursor != null) {
+				writer.commit(cursorKey, cursor);
+			} else {
+				writer.commit();
+			}
+		} finally {
+			writer.close();
+		}
+
+		SyncListener l = listener;
+		if (l != null) {
+			if (batch.isReset) {
+				l.onReset();
+			}
+			for (DeltaEntry<Entry> entry : batch.entries) {
+				l.onEntryChanged(entry.lcPath, entry.metadata);
+			}
+		}
+		batch.isReset = false;
+		batch.entries.clear();
+	}
+
+	/**
+	 * Stops sync() after the page being applied.
+	 */
+	public void cancel() {
+		isCanceled = true;
+	}
+
+	/**
+	 * Forgets the cursor and clears the local metadata of the account, the
+	 * next sync starts from the beginning.
+	 */
+	public void reset() {
+		db.updateSyncState(cursorKey, null);
+		db.clearMetadata(cursorKey);
+	}
+}
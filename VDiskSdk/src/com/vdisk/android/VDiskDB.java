@@ -1,10 +1,18 @@
 package com.vdisk.android;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.vdisk.net.VDiskAPI.DeltaEntry;
+import com.vdisk.net.VDiskAPI.DeltaPage;
+import com.vdisk.net.VDiskAPI.Entry;
 
 /**
  * 此数据库表中有两个字段，file_id 和 file_obj. file_id = MD5(上传文件本地路径
@@ -14,6 +22,15 @@ import android.database.sqlite.SQLiteOpenHelper;
  * = MD5(Local path of file to upload + target VDisk path of file to upload), to
  * identify the file to upload; file_obj, the form of serialized file object.
  * 
+ * 元数据表保存文件和目录的{@link Entry}，以账号和小写路径为主键，按父目录建立索引，用于离线显示目录。
+ * 每个账号的元数据互相独立。
+ * 
+ * The metadata table stores the {@link Entry} of files and folders, keyed by
+ * the account and the lower case path and indexed by the parent folder, so
+ * that folders can be shown offline. The metadata of each account is kept
+ * apart, the account being any key the app identifies the account with, e.g.
+ * the uid.
+ * 
  * @author Kevin
  * 
  */
@@ -24,7 +41,7 @@ public class VDiskDB extends SQLiteOpenHelper {
 
 	private final static String DB_NAME = "vdiskdb";
 
-	private final static int VERSION = 1;
+	private final static int VERSION = 2;
 
 	private static VDiskDB instance = null;
 
@@ -34,6 +51,29 @@ public class VDiskDB extends SQLiteOpenHelper {
 	private final String UPLOAD_FILE_ID = "file_id";
 	private final String UPLOAD_FILE_OBJECT = "file_obj";
 
+	private final String METADATA_TABLE = "vdisk_metadata";
+	private final String METADATA_ACCOUNT = "account";
+	private final String METADATA_LC_PATH = "lc_path";
+	private final String METADATA_PATH = "path";
+	private final String METADATA_PARENT = "parent";
+	private final String METADATA_IS_DIR = "is_dir";
+	private final String METADATA_REV = "rev";
+	private final String METADATA_HASH = "hash";
+	private final String METADATA_BYTES = "bytes";
+	private final String METADATA_MD5 = "md5";
+	private final String METADATA_SHA1 = "sha1";
+	private final String METADATA_MODIFIED = "modified";
+	private final String METADATA_THUMB_EXISTS = "thumb_exists";
+
+	private final String SYNC_STATE_TABLE = "vdisk_sync_state";
+	private final String SYNC_STATE_KEY = "state_key";
+	private final String SYNC_STATE_VALUE = "state_value";
+
+	private final String[] METADATA_COLUMNS = { METADATA_PATH,
+			METADATA_IS_DIR, METADATA_REV, METADATA_HASH, METADATA_BYTES,
+			METADATA_MD5, METADATA_SHA1, METADATA_MODIFIED,
+			METADATA_THUMB_EXISTS };
+
 	@SuppressWarnings("static-access")
 	private VDiskDB(Context context) {
 		super(context, DB_NAME, null, VERSION);
@@ -60,13 +100,46 @@ public class VDiskDB extends SQLiteOpenHelper {
 				+ UPLOAD_FILE_ID + " TEXT UNIQUE, " + UPLOAD_FILE_OBJECT
 				+ " TEXT )";
 		db.execSQL(sql);
+
+		createMetadataTable(db);
+		createSyncStateTable(db);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		String sql = "DROP TABLE IF EXISTS " + UPLOAD_TABLE;
+		// 版本2增加元数据和同步状态表，保留已有的上传信息 // Version 2 adds the
+		// metadata and sync state tables, keeping the upload information
+		if (oldVersion < 2) {
+			createMetadataTable(db);
+			createSyncStateTable(db);
+		}
+	}
+
+	private void createSyncStateTable(SQLiteDatabase db) {
+		String sql = "CREATE TABLE IF NOT EXISTS " + SYNC_STATE_TABLE + " ("
+				+ "_id" + " Integer primary key autoincrement, "
+				+ SYNC_STATE_KEY + " TEXT UNIQUE, " + SYNC_STATE_VALUE
+				+ " TEXT )";
+		db.execSQL(sql);
+	}
+
+	private void createMetadataTable(SQLiteDatabase db) {
+		String sql = "CREATE TABLE IF NOT EXISTS " + METADATA_TABLE + " ("
+				+ "_id" + " Integer primary key autoincrement, "
+				+ METADATA_ACCOUNT + " TEXT NOT NULL, " + METADATA_LC_PATH
+				+ " TEXT NOT NULL, " + METADATA_PATH
+				+ " TEXT, " + METADATA_PARENT + " TEXT, " + METADATA_IS_DIR
+				+ " INTEGER, " + METADATA_REV + " TEXT, " + METADATA_HASH
+				+ " TEXT, " + METADATA_BYTES + " INTEGER, " + METADATA_MD5
+				+ " TEXT, " + METADATA_SHA1 + " TEXT, " + METADATA_MODIFIED
+				+ " TEXT, " + METADATA_THUMB_EXISTS + " INTEGER, UNIQUE ("
+				+ METADATA_ACCOUNT + ", " + METADATA_LC_PATH + ") )";
+		db.execSQL(sql);
+
+		sql = "CREATE INDEX IF NOT EXISTS " + METADATA_TABLE + "_"
+				+ METADATA_PARENT + " ON " + METADATA_TABLE + " ("
+				+ METADATA_ACCOUNT + ", " + METADATA_PARENT + ")";
 		db.execSQL(sql);
-		onCreate(db);
 	}
 
 	/**
@@ -142,4 +215,439 @@ public class VDiskDB extends SQLiteOpenHelper {
 		return null;
 	}
 
+	/**
+	 * 批量插入或更新文件元数据，在一个事务中完成
+	 * 
+	 * Insert or update the metadata of files in one transaction.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param entries
+	 */
+	public void updateMetadata(String account, List<Entry> entries) {
+		db.beginTransaction();
+		try {
+			upsertMetadata(account, entries);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * 保存目录及其内容，并删除目录中已经不存在的文件
+	 * 
+	 * Save a folder and its contents, and delete the files which are no longer
+	 * in the folder.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param folder
+	 *            the metadata of the folder, including its contents.
+	 */
+	public void updateFolderMetadata(String account, Entry folder) {
+		List<Entry> entries = new ArrayList<Entry>();
+		entries.add(folder);
+		if (folder.contents != null) {
+			entries.addAll(folder.contents);
+		}
+
+		db.beginTransaction();
+		try {
+			if (folder.contents != null) {
+				// 先删除旧的目录内容 // Delete the old contents first
+				for (Entry child : readFolderMetadata(account, folder.path)) {
+					if (!containsPath(folder.contents, child.path)) {
+						deleteMetadata(account, child.path);
+					}
+				}
+			}
+			upsertMetadata(account, entries);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private void upsertMetadata(String account, List<Entry> entries) {
+		SQLiteStatement statement = compileUpsertStatement();
+		try {
+			for (Entry entry : entries) {
+				upsertMetadata(statement, account, entry);
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	private SQLiteStatement compileUpsertStatement() {
+		String sql = "INSERT OR REPLACE INTO " + METADATA_TABLE + " ("
+				+ METADATA_ACCOUNT + ", " + METADATA_LC_PATH + ", "
+				+ METADATA_PARENT + ", "
+				+ METADATA_PATH + ", " + METADATA_IS_DIR + ", " + METADATA_REV
+				+ ", " + METADATA_HASH + ", " + METADATA_BYTES + ", "
+				+ METADATA_MD5 + ", " + METADATA_SHA1 + ", "
+				+ METADATA_MODIFIED + ", " + METADATA_THUMB_EXISTS
+				+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		return db.compileStatement(sql);
+	}
+
+	private void upsertMetadata(SQLiteStatement statement, String account,
+			Entry entry) {
+		if (entry == null || entry.path == null) {
+			return;
+		}
+		String lcPath = entry.path.toLowerCase();
+		statement.clearBindings();
+		statement.bindString(1, account);
+		statement.bindString(2, lcPath);
+		statement.bindString(3, parentOf(lcPath));
+		statement.bindString(4, entry.path);
+		statement.bindLong(5, entry.isDir ? 1 : 0);
+		bindString(statement, 6, entry.rev);
+		bindString(statement, 7, entry.hash);
+		statement.bindLong(8, entry.bytes);
+		bindString(statement, 9, entry.md5);
+		bindString(statement, 10, entry.sha1);
+		bindString(statement, 11, entry.modified);
+		statement.bindLong(12, entry.thumbExists ? 1 : 0);
+		statement.execute();
+	}
+
+	private static void bindString(SQLiteStatement statement, int index,
+			String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	private static boolean containsPath(List<Entry> entries, String path) {
+		for (Entry entry : entries) {
+			if (entry.path != null && entry.path.equalsIgnoreCase(path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the lower case path of the parent folder.
+	 */
+	private static String parentOf(String lcPath) {
+		if (lcPath.equals("/")) {
+			return "";
+		}
+		int ind = lcPath.lastIndexOf('/');
+		return ind <= 0 ? "/" : lcPath.substring(0, ind);
+	}
+
+	/**
+	 * 读取文件元数据
+	 * 
+	 * Read the metadata of a file or folder, without its contents.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param path
+	 * @return
+	 */
+	public Entry readMetadata(String account, String path) {
+		Cursor cursor = db.query(METADATA_TABLE, METADATA_COLUMNS,
+				METADATA_ACCOUNT + " = ? AND " + METADATA_LC_PATH + " = ?",
+				new String[] { account, path.toLowerCase() }, null, null,
+				null);
+
+		if (cursor != null) {
+			try {
+				if (cursor.moveToFirst()) {
+					return readEntry(cursor);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * 读取目录中的文件元数据，目录在前
+	 * 
+	 * Read the metadata of the files in a folder, folders first.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param path
+	 *            the path of the folder.
+	 * @return
+	 */
+	public List<Entry> readFolderMetadata(String account, String path) {
+		String lcPath = path.toLowerCase();
+		if (lcPath.length() > 1 && lcPath.endsWith("/")) {
+			lcPath = lcPath.substring(0, lcPath.length() - 1);
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		Cursor cursor = db.query(METADATA_TABLE, METADATA_COLUMNS,
+				METADATA_ACCOUNT + " = ? AND " + METADATA_PARENT + " = ?",
+				new String[] { account, lcPath }, null, null, METADATA_IS_DIR
+						+ " DESC, " + METADATA_LC_PATH);
+
+		if (cursor != null) {
+			try {
+				while (cursor.moveToNext()) {
+					entries.add(readEntry(cursor));
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		return entries;
+	}
+
+	private Entry readEntry(Cursor cursor) {
+		Entry entry = new Entry();
+		entry.path = cursor.getString(0);
+		entry.isDir = cursor.getInt(1) != 0;
+		entry.rev = cursor.getString(2);
+		entry.hash = cursor.getString(3);
+		entry.bytes = cursor.getLong(4);
+		entry.md5 = cursor.getString(5);
+		entry.sha1 = cursor.getString(6);
+		entry.modified = cursor.getString(7);
+		entry.thumbExists = cursor.getInt(8) != 0;
+		return entry;
+	}
+
+	/**
+	 * 删除文件或目录的元数据，包括目录中的所有文件
+	 * 
+	 * Delete the metadata of a file or folder, including everything in the
+	 * folder.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param path
+	 */
+	public void deleteMetadata(String account, String path) {
+		String lcPath = path.toLowerCase();
+		if (lcPath.length() > 1 && lcPath.endsWith("/")) {
+			lcPath = lcPath.substring(0, lcPath.length() - 1);
+		}
+
+		if (lcPath.equals("/")) {
+			clearMetadata(account);
+			return;
+		}
+
+		db.execSQL("DELETE FROM " + METADATA_TABLE + " WHERE "
+				+ METADATA_ACCOUNT + " = ? AND " + METADATA_LC_PATH + " = ?",
+				new String[] { account, lcPath });
+		deleteDescendants(account, lcPath);
+	}
+
+	private void deleteDescendants(String account, String lcPath) {
+		if (lcPath.endsWith("/")) {
+			lcPath = lcPath.substring(0, lcPath.length() - 1);
+		}
+
+		// "/"的下一个字符是"0"，用区间查询所有子路径 // '0' is the character after
+		// '/', so the range matches all the descendants
+		String sql = "DELETE FROM " + METADATA_TABLE + " WHERE "
+				+ METADATA_ACCOUNT + " = ? AND " + METADATA_LC_PATH
+				+ " >= ? AND " + METADATA_LC_PATH + " < ?";
+
+		String[] args = new String[] { account, lcPath + "/", lcPath + "0" };
+
+		db.execSQL(sql, args);
+	}
+
+	/**
+	 * 删除账号的所有文件元数据
+	 * 
+	 * Delete all the metadata of an account.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 */
+	public void clearMetadata(String account) {
+		db.execSQL("DELETE FROM " + METADATA_TABLE + " WHERE "
+				+ METADATA_ACCOUNT + " = ?", new String[] { account });
+	}
+
+	/**
+	 * 在一个事务中应用一页delta，并保存cursor
+	 * 
+	 * Apply a page of delta to the metadata and save the cursor in one
+	 * transaction.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @param page
+	 *            the delta page.
+	 * @param cursorKey
+	 *            the key to save the cursor with.
+	 */
+	public void applyDeltaPage(String account, DeltaPage<Entry> page,
+			String cursorKey) {
+		DeltaPageWriter writer = beginDeltaPage(account);
+		try {
+			if (page.reset) {
+				writer.reset();
+			}
+			for (DeltaEntry<Entry> entry : page.entries) {
+				writer.apply(entry);
+			}
+			writer.commit(cursorKey, page.cursor);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * 开始一个事务，逐条应用delta，如边下载边解析的delta中的一批。不要在事务中等待网络，事务会锁住数据库
+	 * 
+	 * Begin a transaction to apply delta entries one by one, e.g. a batch of
+	 * the entries streamed by {@link com.vdisk.net.VDiskAPI#delta(String,
+	 * com.vdisk.net.VDiskAPI.DeltaVisitor)}. Don't keep it open while reading
+	 * from the network, it locks the database. Nothing is saved unless
+	 * {@link DeltaPageWriter#commit} is called before
+	 * {@link DeltaPageWriter#close}.
+	 * 
+	 * @param account
+	 *            the key of the account.
+	 * @return
+	 */
+	public DeltaPageWriter beginDeltaPage(String account) {
+		db.beginTransaction();
+		try {
+			return new DeltaPageWriter(account, compileUpsertStatement());
+		} catch (RuntimeException e) {
+			db.endTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies delta entries in one transaction (returned by
+	 * {@link VDiskDB#beginDeltaPage(String)}). Must be used on the thread
+	 * which began it.
+	 */
+	public class DeltaPageWriter {
+
+		private final String account;
+		private final SQLiteStatement statement;
+		private boolean isClosed;
+
+		private DeltaPageWriter(String account, SQLiteStatement statement) {
+			this.account = account;
+			this.statement = statement;
+		}
+
+		/**
+		 * Delete all the metadata of the account before applying the entries.
+		 */
+		public void reset() {
+			clearMetadata(account);
+		}
+
+		public void apply(DeltaEntry<Entry> entry) {
+			if (entry.metadata == null) {
+				// 服务器上已不存在，删除路径及其子路径 // The path no
+				// longer exists, delete it and its children
+				deleteMetadata(account, entry.lcPath);
+			} else {
+				if (!entry.metadata.isDir) {
+					// 文件替换原来的目录时删除目录内容 // A file
+					// replacing a folder removes the folder's children
+					deleteDescendants(account, entry.lcPath);
+				}
+				upsertMetadata(statement, account, entry.metadata);
+			}
+		}
+
+		/**
+		 * Save the applied entries.
+		 */
+		public void commit() {
+			db.setTransactionSuccessful();
+		}
+
+		/**
+		 * Save the cursor with the applied entries.
+		 */
+		public void commit(String cursorKey, String cursor) {
+			writeSyncState(cursorKey, cursor);
+			db.setTransactionSuccessful();
+		}
+
+		/**
+		 * End the transaction, rolling back if it hasn't been committed.
+		 */
+		public void close() {
+			if (isClosed) {
+				return;
+			}
+			isClosed = true;
+			try {
+				statement.close();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * 保存同步状态，如delta的cursor
+	 * 
+	 * Save a sync state, e.g. the cursor of delta.
+	 * 
+	 * @param key
+	 * @param value
+	 *            the value, or null to delete the state.
+	 */
+	public void updateSyncState(String key, String value) {
+		writeSyncState(key, value);
+	}
+
+	private void writeSyncState(String key, String value) {
+		if (value == null) {
+			db.execSQL("DELETE FROM " + SYNC_STATE_TABLE + " WHERE "
+					+ SYNC_STATE_KEY + " = ?", new String[] { key });
+		} else {
+			db.execSQL("INSERT OR REPLACE INTO " + SYNC_STATE_TABLE + " ("
+					+ SYNC_STATE_KEY + ", " + SYNC_STATE_VALUE
+					+ ") VALUES (?, ?)", new String[] { key, value });
+		}
+	}
+
+	/**
+	 * 读取同步状态
+	 * 
+	 * Read a sync state.
+	 * 
+	 * @param key
+	 * @return the value, or null.
+	 */
+	public String readSyncState(String key) {
+		Cursor cursor = db.query(SYNC_STATE_TABLE,
+				new String[] { SYNC_STATE_VALUE }, SYNC_STATE_KEY + " = ?",
+				new String[] { key }, null, null, null);
+
+		if (cursor != null) {
+			try {
+				if (cursor.moveToFirst()) {
+					return cursor.getString(0);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		return null;
+	}
+
 }
@@ -0,0 +1,363 @@
+package com.vdisk.net;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.vdisk.net.VDiskAPI.Entry;
+import com.vdisk.utils.HttpDate;
+
+/**
+ * 按列保存目录列表中的{@link Entry}，减少大目录在低端设备上占用的内存。root、icon、mime_type、size和父目录路径等重复的字符串只保存一份，
+ * 日期解析为long保存，path拆分为父目录和文件名。get()时生成普通的{@link Entry}，原有字段照常使用。
+ *
+ * A list of {@link Entry} stored by columns, so that a big folder listing
+ * takes much less memory on low end devices. Repeated strings such as root,
+ * icon, mime type, size and the parent path are kept once in a pool, dates are
+ * parsed once into longs, and the path is stored as a parent plus a name.
+ * {@link #get(int)} builds a plain {@link Entry}, so its fields work as usual;
+ * each call returns a new object, changing it doesn't change the list.
+ */
+public class CompactEntryList extends AbstractList<Entry> {
+
+	private static final int DIR = 1;
+	private static final int THUMB_EXISTS = 2;
+	private static final int DELETED = 4;
+
+	private static final int MODIFIED = 0;
+	private static final int CLIENT_MTIME = 1;
+
+	/**
+	 * Marks a date column which has no value or couldn't be parsed.
+	 */
+	private static final long NO_DATE = HttpDate.INVALID;
+
+	private int size;
+
+	private final ArrayList<String> pool = new ArrayList<String>();
+	private final HashMap<String, Integer> poolIds = new HashMap<String, Integer>();
+
+	private int[] parentIds;
+	private String[] names;
+	private int[] rootIds;
+	private int[] iconIds;
+	private int[] mimeTypeIds;
+	private int[] sizeIds;
+
+	private String[] hashes;
+	private String[] revs;
+	private String[] revisions;
+	private String[] md5s;
+	private String[] sha1s;
+	private String[] thumbs;
+
+	private long[] bytes;
+	private byte[] flags;
+
+	private long[] modified;
+	private short[] modifiedOffsets;
+	private long[] clientMtimes;
+	private short[] clientMtimeOffsets;
+
+	/**
+	 * The date strings which can't be rebuilt from the parsed value, keyed by
+	 * index * 2 + column.
+	 */
+	private HashMap<Integer, String> rawDates;
+
+	/**
+	 * The contents of the entries which have them.
+	 */
+	private HashMap<Integer, List<Entry>> contents;
+
+	public CompactEntryList() {
+		this(16);
+	}
+
+	public CompactEntryList(int initialCapacity) {
+		allocate(Math.max(initialCapacity, 1));
+	}
+
+	/**
+	 * Returns a compact copy of the entries.
+	 */
+	public static CompactEntryList copyOf(List<Entry> entries) {
+		CompactEntryList list = new CompactEntryList(entries.size());
+		for (Entry entry : entries) {
+			list.add(entry);
+		}
+		return list;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Appends a copy of the entry.
+	 */
+	@Override
+	public boolean add(Entry entry) {
+		if (entry == null) {
+			throw new NullPointerException();
+		}
+		if (size == bytes.length) {
+			allocate(size * 2);
+		}
+
+		int i = size;
+		if (entry.path != null) {
+			int ind = entry.path.lastIndexOf('/');
+			parentIds[i] = intern(entry.path.substring(0, ind + 1));
+			names[i] = entry.path.substring(ind + 1);
+		} else {
+			parentIds[i] = -1;
+			names[i] = null;
+		}
+		rootIds[i] = intern(entry.root);
+		iconIds[i] = intern(entry.icon);
+		mimeTypeIds[i] = intern(entry.mimeType);
+		sizeIds[i] = intern(entry.size);
+
+		hashes[i] = entry.hash;
+		revs[i] = entry.rev;
+		revisions[i] = entry.revision;
+		md5s[i] = entry.md5;
+		sha1s[i] = entry.sha1;
+		thumbs[i] = entry.thumb;
+
+		bytes[i] = entry.bytes;
+		flags[i] = (byte) ((entry.isDir ? DIR : 0)
+				| (entry.thumbExists ? THUMB_EXISTS : 0)
+				| (entry.isDeleted ? DELETED : 0));
+
+		modified[i] = putDate(i, MODIFIED, entry.modified, modifiedOffsets);
+		clientMtimes[i] = putDate(i, CLIENT_MTIME, entry.clientMtime,
+				clientMtimeOffsets);
+
+		if (entry.contents != null) {
+			if (contents == null) {
+				contents = new HashMap<Integer, List<Entry>>();
+			}
+			contents.put(i, entry.contents);
+		}
+
+		size++;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public Entry get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+
+		Entry entry = new Entry();
+		if (parentIds[index] >= 0) {
+			entry.path = pool.get(parentIds[index]) + names[index];
+		}
+		entry.root = pooled(rootIds[index]);
+		entry.icon = pooled(iconIds[index]);
+		entry.mimeType = pooled(mimeTypeIds[index]);
+		entry.size = pooled(sizeIds[index]);
+
+		entry.hash = hashes[index];
+		entry.rev = revs[index];
+		entry.revision = revisions[index];
+		entry.md5 = md5s[index];
+		entry.sha1 = sha1s[index];
+		entry.thumb = thumbs[index];
+
+		entry.bytes = bytes[index];
+		entry.isDir = (flags[index] & DIR) != 0;
+		entry.thumbExists = (flags[index] & THUMB_EXISTS) != 0;
+		entry.isDeleted = (flags[index] & DELETED) != 0;
+
+		entry.modified = getDate(index, MODIFIED, modified[index],
+				modifiedOffsets[index]);
+		entry.clientMtime = getDate(index, CLIENT_MTIME, clientMtimes[index],
+				clientMtimeOffsets[index]);
+
+		if (contents != null) {
+			entry.contents = contents.get(index);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the path of the entry without building the {@link Entry}.
+	 */
+	public String getPath(int index) {
+		checkIndex(index);
+		return parentIds[index] < 0 ? null : pool.get(parentIds[index])
+				+ names[index];
+	}
+
+	/**
+	 * Returns the file name of the entry without building the {@link Entry}.
+	 */
+	public String getName(int index) {
+		checkIndex(index);
+		return names[index];
+	}
+
+	public boolean isDir(int index) {
+		checkIndex(index);
+		return (flags[index] & DIR) != 0;
+	}
+
+	public long getBytes(int index) {
+		checkIndex(index);
+		return bytes[index];
+	}
+
+	/**
+	 * Returns the modified time of the entry in milliseconds since the epoch,
+	 * or -1 if it's unknown.
+	 */
+	public long getModifiedTime(int index) {
+		checkIndex(index);
+		return modified[index] == NO_DATE ? -1 : modified[index];
+	}
+
+	/**
+	 * Returns the client modified time of the entry in milliseconds since the
+	 * epoch, or -1 if it's unknown.
+	 */
+	public long getClientMtime(int index) {
+		checkIndex(index);
+		return clientMtimes[index] == NO_DATE ? -1 : clientMtimes[index];
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		pool.clear();
+		poolIds.clear();
+		rawDates = null;
+		contents = null;
+		allocate(16);
+		modCount++;
+	}
+
+	/**
+	 * Releases the unused capacity of the columns.
+	 */
+	public void trimToSize() {
+		if (size < bytes.length) {
+			allocate(Math.max(size, 1));
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	private int intern(String value) {
+		if (value == null) {
+			return -1;
+		}
+		Integer id = poolIds.get(value);
+		if (id == null) {
+			id = pool.size();
+			pool.add(value);
+			poolIds.put(value, id);
+		}
+		return id;
+	}
+
+	private String pooled(int id) {
+		return id < 0 ? null : pool.get(id);
+	}
+
+	private long putDate(int index, int column, String date, short[] offsets) {
+		if (date == null) {
+			return NO_DATE;
+		}
+
+		long time = HttpDate.parse(date);
+		if (time != NO_DATE) {
+			short offset = (short) HttpDate.parseOffset(date);
+			// 只有能原样还原的日期才只保存long // Only the dates which can be
+			// rebuilt exactly are kept as longs alone
+			if (date.equals(HttpDate.format(time, offset))) {
+				offsets[index] = offset;
+				return time;
+			}
+		}
+
+		if (rawDates == null) {
+			rawDates = new HashMap<Integer, String>();
+		}
+		rawDates.put(index * 2 + column, date);
+		return NO_DATE;
+	}
+
+	private String getDate(int index, int column, long time, short offset) {
+		if (time != NO_DATE) {
+			return HttpDate.format(time, offset);
+		}
+		return rawDates == null ? null : rawDates.get(index * 2 + column);
+	}
+
+	private void allocate(int capacity) {
+		parentIds = copy(parentIds, capacity);
+		names = copy(names, capacity);
+		rootIds = copy(rootIds, capacity);
+		iconIds = copy(iconIds, capacity);
+		mimeTypeIds = copy(mimeTypeIds, capacity);
+		sizeIds = copy(sizeIds, capacity);
+		hashes = copy(hashes, capacity);
+		revs = copy(revs, capacity);
+		revisions = copy(revisions, capacity);
+		md5s = copy(md5s, capacity);
+		sha1s = copy(sha1s, capacity);
+		thumbs = copy(thumbs, capacity);
+
+		long[] newBytes = new long[capacity];
+		byte[] newFlags = new byte[capacity];
+		long[] newModified = new long[capacity];
+		short[] newModifiedOffsets = new short[capacity];
+		long[] newClientMtimes = new long[capacity];
+		short[] newClientMtimeOffsets = new short[capacity];
+		if (bytes != null) {
+			int n = Math.min(size, capacity);
+			System.arraycopy(bytes, 0, newBytes, 0, n);
+			System.arraycopy(flags, 0, newFlags, 0, n);
+			System.arraycopy(modified, 0, newModified, 0, n);
+			System.arraycopy(modifiedOffsets, 0, newModifiedOffsets, 0, n);
+			System.arraycopy(clientMtimes, 0, newClientMtimes, 0, n);
+			System.arraycopy(clientMtimeOffsets, 0, newClientMtimeOffsets, 0,
+					n);
+		}
+		bytes = newBytes;
+		flags = newFlags;
+		modified = newModified;
+		modifiedOffsets = newModifiedOffsets;
+		clientMtimes = newClientMtimes;
+		clientMtimeOffsets = newClientMtimeOffsets;
+	}
+
+	private int[] copy(int[] array, int capacity) {
+		int[] newArray = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, newArray, 0, Math.min(size, capacity));
+		}
+		return newArray;
+	}
+
+	private String[] copy(String[] array, int capacity) {
+		String[] newArray = new String[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, newArray, 0, Math.min(size, capacity));
+		}
+		return newArray;
+	}
+}
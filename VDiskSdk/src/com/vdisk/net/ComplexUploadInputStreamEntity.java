@@ -1,19 +1,20 @@
 package com.vdisk.net;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.http.entity.AbstractHttpEntity;
 
-import android.util.Log;
+import com.vdisk.utils.BufferPool;
+import com.vdisk.utils.Digest;
 
 /**
  * 对上传文件流的封装。实现了对大文件的分段控制。
@@ -26,21 +27,32 @@ import android.util.Log;
  */
 public class ComplexUploadInputStreamEntity extends AbstractHttpEntity {
 
-	private final static int BUFFER_SIZE = 8192;
+	private final static int BUFFER_SIZE = 64 * 1024;
 
+	/**
+	 * 所有分段共用的缓冲区 // The buffers shared by all the segments.
+	 */
+	private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE,
+			8);
+
+	private String srcPath;
 	private long length;
 	private long startPos;
 	private boolean consumed = false;
-	RandomAccessFile randomAccessFile = null;
+	private MessageDigest md5Digest;
+	private String md5;
 
 	public ComplexUploadInputStreamEntity(String srcPath, long startPos,
 			long length) throws IOException {
 		super();
 
+		if (!new File(srcPath).isFile()) {
+			throw new FileNotFoundException(srcPath);
+		}
+
+		this.srcPath = srcPath;
 		this.length = length;
 		this.startPos = startPos;
-		randomAccessFile = new RandomAccessFile(srcPath, "rw");
-		randomAccessFile.seek(startPos);
 	}
 
 	public boolean isRepeatable() {
@@ -59,34 +71,86 @@ public class ComplexUploadInputStreamEntity extends AbstractHttpEntity {
 		return null;
 	}
 
+	/**
+	 * 上传时同时计算分段的md5，不需要为md5再读一次文件。
+	 * 
+	 * Computes the md5 of the segment from the bytes being sent, so the
+	 * segment isn't read again for its md5.
+	 */
+	public void setComputeMD5(boolean computeMD5) {
+		if (!computeMD5) {
+			md5Digest = null;
+			return;
+		}
+		try {
+			md5Digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			md5Digest = null;
+		}
+	}
+
+	/**
+	 * Returns the md5 of the segment once it has been written completely, or
+	 * null if it isn't computed.
+	 */
+	public String getMD5() {
+		return md5;
+	}
+
+	/**
+	 * 通过FileChannel的位置读取把分段读入复用的缓冲区，直接写入输出流。
+	 * HttpClient只提供OutputStream，无法把文件直接transferTo到socket。
+	 * 
+	 * Reads the segment by positional reads of a FileChannel into a reused
+	 * buffer, and writes it to the output stream. HttpClient only provides an
+	 * OutputStream, so the file can't be transferred to the socket directly.
+	 */
 	public void writeTo(final OutputStream outstream) throws IOException {
 		if (outstream == null) {
 			throw new IllegalArgumentException("Output stream may not be null");
 		}
 
-		byte[] buffer = new byte[BUFFER_SIZE];
-		int read;
-		long count = 0;
-
-		while (true) {
-			read = randomAccessFile.read(buffer, 0, buffer.length);
-
-			if (read < 0) {
-				break;
+		byte[] buffer = BUFFER_POOL.acquire();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(srcPath, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			long count = 0;
+			md5 = null;
+			if (md5Digest != null) {
+				md5Digest.reset();
 			}
 
-			count += read;
-
-			judgeTransfer(outstream, buffer, read);
+			while (count < length) {
+				byteBuffer.clear();
+				if (length - count < buffer.length) {
+					byteBuffer.limit((int) (length - count));
+				}
+
+				int read = channel.read(byteBuffer, startPos + count);
+				if (read < 0) {
+					// 文件变短了，不能发送少于Content-Length的数据 // The file
+					// has shrunk, fewer bytes than the Content-Length can't be
+					// sent
+					throw new IOException("Unexpected end of " + srcPath
+							+ " at " + (startPos + count) + ", expected "
+							+ (startPos + length));
+				}
+
+				if (md5Digest != null) {
+					md5Digest.update(buffer, 0, read);
+				}
+				outstream.write(buffer, 0, read);
+				count += read;
+			}
 
-			/**
-			 * 判断是否到达单片末尾 Judge whether reach the end of one section
-			 */
-			if (count == length) {
-				Log.d("Test", "count-->" + count);
-				outstream.flush();
-				break;
+			outstream.flush();
+			if (md5Digest != null) {
+				md5 = Digest.toHexString(md5Digest.digest());
 			}
+		} finally {
+			randomAccessFile.close();
+			BUFFER_POOL.release(buffer);
 		}
 
 		this.consumed = true;
@@ -100,43 +164,6 @@ public class ComplexUploadInputStreamEntity extends AbstractHttpEntity {
 	// non-javadoc, see interface HttpEntity
 	public void consumeContent() throws IOException {
 		this.consumed = true;
-		randomAccessFile.close();
-	}
-
-	ExecutorService executor = Executors.newSingleThreadExecutor();
-
-	public boolean judgeTransfer(final OutputStream bos, final byte[] buffer,
-			final int len) throws IOException {
-
-		Future<String> result = executor.submit(new Callable<String>() {
-
-			@Override
-			public String call() throws Exception {
-
-				bos.write(buffer, 0, len);
-				bos.flush();
-
-				return "success";
-			}
-		});
-
-		String str;
-		try {
-			str = result.get(VDiskAPI.UPLOAD_RESPONSE_TIMEOUT_S,
-					TimeUnit.SECONDS);
-		} catch (TimeoutException e) {
-			e.printStackTrace();
-			throw new IOException("Long time no response.");
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IOException();
-		}
-
-		if (str != null) {
-			return true;
-		}
-
-		return false;
 	}
 
 }
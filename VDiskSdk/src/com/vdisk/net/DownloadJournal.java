@@ -0,0 +1,408 @@
+package com.vdisk.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+import android.util.Log;
+
+import com.vdisk.net.VDiskAPI.Entry;
+import com.vdisk.utils.Digest;
+
+/**
+ * 下载临时文件旁的日志文件，记录临时文件中哪些分块已经写入磁盘并确认无误。续传时只下载缺失的分块。
+ * 可选地在下载过程中逐步计算整个文件的md5(或sha1)，下载完成时与{@link Entry}中的值比较，不需要重新读取整个文件。
+ *
+ * A small journal beside a download temp file, which records the chunks of the
+ * temp file that have been written to disk and verified. A resumed download
+ * only downloads the missing chunks. Optionally the md5 (or sha1) of the whole
+ * file is computed incrementally while downloading and compared with the one
+ * in {@link Entry} at the end, without rereading the whole file.
+ */
+public class DownloadJournal {
+
+	private static final String TAG = "DownloadJournal";
+
+	public static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+	private static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File journalFile;
+	private final String md5;
+	private final long fileSize;
+	private final long chunkSize;
+	private final int chunkNum;
+	private final BitSet verified;
+
+	private MessageDigest digest;
+	private String expectedDigest;
+	private long hashedBytes;
+
+	/**
+	 * Whether the download is being verified, see {@link #startVerify}.
+	 */
+	private boolean isVerifying;
+
+	private DownloadJournal(File journalFile, String md5, long fileSize,
+			long chunkSize) {
+		this.journalFile = journalFile;
+		this.md5 = md5 == null ? "" : md5;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.chunkNum = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		this.verified = new BitSet(chunkNum);
+	}
+
+	/**
+	 * Returns the journal file of the download temp file.
+	 */
+	public static File getJournalFile(File targetFile) {
+		return new File(targetFile.getPath() + JOURNAL_FILE_SUFFIX);
+	}
+
+	/**
+	 * Deletes the journal of the download temp file.
+	 */
+	public static void delete(File targetFile) {
+		getJournalFile(targetFile).delete();
+	}
+
+	/**
+	 * Opens the journal of the download temp file. If there's no journal, or
+	 * the journal was written for another version of the file, an empty
+	 * journal is returned, and nothing of the temp file can be trusted.
+	 *
+	 * @param targetFile
+	 *            the download temp file.
+	 * @param md5
+	 *            the md5 of the file on the server.
+	 * @param fileSize
+	 *            the size of the file on the server.
+	 * @param chunkSize
+	 *            the size of each chunk.
+	 * @return
+	 */
+	public static DownloadJournal open(File targetFile, String md5,
+			long fileSize, long chunkSize) {
+		DownloadJournal journal = new DownloadJournal(
+				getJournalFile(targetFile), md5, fileSize, chunkSize);
+		if (journal.journalFile.exists() && !journal.load()) {
+			Log.d(TAG, "journal doesn't match, restart the download.");
+			journal.journalFile.delete();
+		}
+
+		// 临时文件比日志记录的短时，超出的分块不可信 // If the temp file is
+		// shorter than the journal says, the chunks beyond it can't be trusted
+		long length = targetFile.exists() ? targetFile.length() : 0;
+		for (int i = journal.verified.nextSetBit(0); i >= 0; i = journal.verified
+				.nextSetBit(i + 1)) {
+			if (journal.getChunkEnd(i) > length) {
+				journal.verified.clear(i);
+			}
+		}
+		return journal;
+	}
+
+	private boolean load() {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(journalFile));
+			if (in.readInt() != VERSION || !md5.equals(in.readUTF())
+					|| in.readLong() != fileSize
+					|| in.readLong() != chunkSize || in.readInt() != chunkNum) {
+				return false;
+			}
+
+			byte[] bits = new byte[(chunkNum + 7) / 8];
+			in.readFully(bits);
+			for (int i = 0; i < chunkNum; i++) {
+				if ((bits[i >> 3] & (1 << (i & 7))) != 0) {
+					verified.set(i);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			verified.clear();
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void save() throws IOException {
+		byte[] bits = new byte[(chunkNum + 7) / 8];
+		for (int i = verified.nextSetBit(0); i >= 0; i = verified
+				.nextSetBit(i + 1)) {
+			bits[i >> 3] |= 1 << (i & 7);
+		}
+
+		// 先写入临时文件再重命名，避免日志本身写坏 // Write to a temp file then
+		// rename it, so that the journal itself can't be torn
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(VERSION);
+			out.writeUTF(md5);
+			out.writeLong(fileSize);
+			out.writeLong(chunkSize);
+			out.writeInt(chunkNum);
+			out.write(bits);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		if (!tempFile.renameTo(journalFile)) {
+			throw new IOException("Can't write download journal.");
+		}
+	}
+
+	/**
+	 * Returns how many chunks the file has.
+	 */
+	public int getChunkNum() {
+		return chunkNum;
+	}
+
+	/**
+	 * Returns the index of the chunk which contains the position.
+	 */
+	public int getChunkAt(long position) {
+		return (int) (position / chunkSize);
+	}
+
+	/**
+	 * Returns the first byte of the chunk.
+	 */
+	public long getChunkStart(int index) {
+		return index * chunkSize;
+	}
+
+	/**
+	 * Returns the position after the last byte of the chunk.
+	 */
+	public long getChunkEnd(int index) {
+		return Math.min((index + 1) * chunkSize, fileSize);
+	}
+
+	public synchronized boolean isChunkVerified(int index) {
+		return verified.get(index);
+	}
+
+	/**
+	 * Records that the chunk has been written to disk. The data of the chunk
+	 * must be synced to disk before calling this, so nothing is recorded
+	 * with {@link VDiskAPI.SyncPolicy#NEVER}.
+	 *
+	 * @param index
+	 *            the index of the chunk.
+	 * @throws IOException
+	 */
+	public synchronized void markChunkVerified(int index) throws IOException {
+		verified.set(index);
+		save();
+	}
+
+	/**
+	 * Returns how many bytes of the file have been verified.
+	 */
+	public synchronized long getVerifiedBytes() {
+		long bytes = 0;
+		for (int i = verified.nextSetBit(0); i >= 0; i = verified
+				.nextSetBit(i + 1)) {
+			bytes += getChunkEnd(i) - getChunkStart(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns how many bytes from the beginning of the file have been
+	 * verified without any gap, where a single connection download can resume
+	 * from.
+	 */
+	public synchronized long getContiguousBytes() {
+		int firstMissing = verified.nextClearBit(0);
+		if (firstMissing >= chunkNum) {
+			return fileSize;
+		}
+		return getChunkStart(firstMissing);
+	}
+
+	/**
+	 * Truncates the temp file to the given length and forgets the chunks
+	 * after it.
+	 *
+	 * @param targetFile
+	 *            the download temp file.
+	 * @param length
+	 *            the new length of the temp file, must be at a chunk boundary.
+	 * @throws IOException
+	 */
+	public synchronized void truncate(File targetFile, long length)
+			throws IOException {
+		if (targetFile.exists() && targetFile.length() != length) {
+			RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+		}
+
+		int from = (int) ((length + chunkSize - 1) / chunkSize);
+		if (verified.nextSetBit(from) >= 0) {
+			verified.clear(from, chunkNum);
+			save();
+		}
+		if (hashedBytes > length) {
+			digest = null;
+		}
+	}
+
+	/**
+	 * Deletes the journal after the download finished.
+	 */
+	public void delete() {
+		journalFile.delete();
+	}
+
+	/**
+	 * Starts computing the md5 of the file, or the sha1 if the md5 is
+	 * unknown, while the file is downloading. The verified bytes at the
+	 * beginning of the file are hashed at once. If the metadata has neither,
+	 * there's nothing to verify against and the download isn't verified.
+	 *
+	 * @param metadata
+	 *            the metadata of the file on the server.
+	 * @param channel
+	 *            the channel of the temp file.
+	 * @throws IOException
+	 */
+	public synchronized void startVerify(Entry metadata, FileChannel channel)
+			throws IOException {
+		try {
+			if (metadata.md5 != null) {
+				digest = MessageDigest.getInstance("MD5");
+				expectedDigest = metadata.md5;
+			} else if (metadata.sha1 != null) {
+				digest = MessageDigest.getInstance("SHA-1");
+				expectedDigest = metadata.sha1;
+			} else {
+				digest = null;
+				return;
+			}
+		} catch (NoSuchAlgorithmException e) {
+			digest = null;
+			return;
+		}
+
+		isVerifying = true;
+		hashedBytes = 0;
+		catchUp(channel);
+	}
+
+	/**
+	 * Hashes the bytes which are going to be written at the position, if all
+	 * the bytes before the position have been hashed.
+	 *
+	 * @return whether the bytes are hashed.
+	 */
+	public synchronized boolean update(long position, byte[] buffer, int off,
+			int len) {
+		if (digest == null || position != hashedBytes) {
+			return false;
+		}
+		digest.update(buffer, off, len);
+		hashedBytes += len;
+		return true;
+	}
+
+	/**
+	 * Hashes the verified bytes after the hashed bytes, reading them from the
+	 * temp file. Chunks downloaded out of order are hashed here once the gap
+	 * before them is filled.
+	 *
+	 * @param channel
+	 *            the channel of the temp file.
+	 * @throws IOException
+	 */
+	public synchronized void catchUp(FileChannel channel) throws IOException {
+		catchUp(channel, getContiguousBytes());
+	}
+
+	/**
+	 * Hashes the bytes after the hashed bytes up to the given position,
+	 * reading them from the temp file, e.g. the whole file once every chunk
+	 * has been written.
+	 *
+	 * @param channel
+	 *            the channel of the temp file.
+	 * @param end
+	 *            the position to hash up to.
+	 * @throws IOException
+	 */
+	public synchronized void catchUp(FileChannel channel, long end)
+			throws IOException {
+		if (digest == null) {
+			return;
+		}
+
+		ByteBuffer buffer = null;
+		while (hashedBytes < end) {
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+			buffer.clear();
+			if (end - hashedBytes < buffer.capacity()) {
+				buffer.limit((int) (end - hashedBytes));
+			}
+			int read = channel.read(buffer, hashedBytes);
+			if (read < 0) {
+				throw new IOException("Download temp file is shorter than journal.");
+			}
+			digest.update(buffer.array(), 0, read);
+			hashedBytes += read;
+		}
+	}
+
+	/**
+	 * Returns whether the file matches the md5 (or sha1) of the file on the
+	 * server. If the download is being verified, the whole file must have
+	 * been hashed, otherwise it isn't reported as verified. Returns true if
+	 * the download isn't being verified.
+	 */
+	public synchronized boolean verify() {
+		if (!isVerifying) {
+			return true;
+		}
+		isVerifying = false;
+		if (digest == null || hashedBytes != fileSize) {
+			Log.d(TAG, "verify: only " + hashedBytes + " of " + fileSize
+					+ " bytes hashed");
+			digest = null;
+			return false;
+		}
+		String actual = Digest.toHexString(digest.digest());
+		digest = null;
+		Log.d(TAG, "verify: expected " + expectedDigest + ", actual " + actual);
+		return actual.equalsIgnoreCase(expectedDigest);
+	}
+}
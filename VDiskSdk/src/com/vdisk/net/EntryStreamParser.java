@@ -0,0 +1,395 @@
+package com.vdisk.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+import com.vdisk.net.VDiskAPI.DeltaEntry;
+import com.vdisk.net.VDiskAPI.DeltaVisitor;
+import com.vdisk.net.VDiskAPI.Entry;
+
+/**
+ * 流式解析metadata和delta的返回结果。直接从JSON的token流构造{@link Entry}和{@link DeltaEntry}，
+ * 不生成中间的JSONObject/JSONArray，包含大量文件的目录或delta页不会占用成倍的内存。
+ *
+ * Streaming parsers of metadata and delta responses. {@link Entry} and
+ * {@link DeltaEntry} objects are built directly from the JSON token stream,
+ * without the intermediate JSONObject/JSONArray trees, so that a folder or a
+ * delta page with thousands of entries doesn't take several times its size on
+ * the heap.
+ */
+public class EntryStreamParser {
+
+	/**
+	 * Builds an {@link Entry}, including the entries in its "contents", from
+	 * the events of a JSON object. Nested values it doesn't know are skipped.
+	 */
+	static class EntryBuilder {
+
+		/**
+		 * The open entries and "contents" lists, the innermost at the end.
+		 */
+		private final ArrayList<Object> stack = new ArrayList<Object>();
+		private String key;
+		private int skipDepth;
+		private Entry result;
+
+		/**
+		 * Returns whether an entry is being built.
+		 */
+		boolean isActive() {
+			return !stack.isEmpty();
+		}
+
+		/**
+		 * Returns the entry built, once its object has ended.
+		 */
+		Entry getResult() {
+			return result;
+		}
+
+		void startObject() {
+			if (skipDepth > 0) {
+				skipDepth++;
+			} else if (stack.isEmpty() || top() instanceof List) {
+				stack.add(new Entry());
+			} else {
+				skipDepth = 1;
+			}
+		}
+
+		/**
+		 * @return true if the outermost entry has ended.
+		 */
+		@SuppressWarnings("unchecked")
+		boolean endObject() {
+			if (skipDepth > 0) {
+				skipDepth--;
+				return false;
+			}
+
+			Entry entry = (Entry) stack.remove(stack.size() - 1);
+			if (stack.isEmpty()) {
+				result = entry;
+				return true;
+			}
+			((List<Entry>) top()).add(entry);
+			return false;
+		}
+
+		void startObjectEntry(String key) {
+			if (skipDepth == 0) {
+				this.key = key;
+			}
+		}
+
+		void startArray() {
+			if (skipDepth > 0) {
+				skipDepth++;
+			} else if (top() instanceof Entry && "contents".equals(key)) {
+				Entry entry = (Entry) top();
+				entry.contents = Entry.newContentsList(16);
+				stack.add(entry.contents);
+			} else {
+				skipDepth = 1;
+			}
+		}
+
+		void endArray() {
+			if (skipDepth > 0) {
+				skipDepth--;
+			} else {
+				Object contents = stack.remove(stack.size() - 1);
+				if (contents instanceof CompactEntryList) {
+					((CompactEntryList) contents).trimToSize();
+				}
+			}
+		}
+
+		void primitive(Object value) {
+			if (skipDepth > 0 || !(top() instanceof Entry)) {
+				return;
+			}
+			((Entry) top()).setField(key, value);
+		}
+
+		private Object top() {
+			return stack.get(stack.size() - 1);
+		}
+	}
+
+	/**
+	 * Parses the response of metadata into an {@link Entry}.
+	 */
+	public static class EntryHandler implements ContentHandler {
+
+		private final EntryBuilder builder = new EntryBuilder();
+		private boolean isStarted;
+
+		/**
+		 * Returns the entry parsed, or null if the response isn't an object.
+		 */
+		public Entry getEntry() {
+			return builder.getResult();
+		}
+
+		public void startJSON() throws ParseException, IOException {
+		}
+
+		public void endJSON() throws ParseException, IOException {
+		}
+
+		public boolean startObject() throws ParseException, IOException {
+			if (builder.isActive() || !isStarted) {
+				builder.startObject();
+			}
+			isStarted = true;
+			return true;
+		}
+
+		public boolean endObject() throws ParseException, IOException {
+			if (builder.isActive()) {
+				// 根对象结束后停止解析 // Stop parsing after the root object
+				return !builder.endObject();
+			}
+			return true;
+		}
+
+		public boolean startObjectEntry(String key) throws ParseException,
+				IOException {
+			if (builder.isActive()) {
+				builder.startObjectEntry(key);
+			}
+			return true;
+		}
+
+		public boolean endObjectEntry() throws ParseException, IOException {
+			return true;
+		}
+
+		public boolean startArray() throws ParseException, IOException {
+			if (builder.isActive()) {
+				builder.startArray();
+			}
+			isStarted = true;
+			return true;
+		}
+
+		public boolean endArray() throws ParseException, IOException {
+			if (builder.isActive()) {
+				builder.endArray();
+			}
+			return true;
+		}
+
+		public boolean primitive(Object value) throws ParseException,
+				IOException {
+			if (builder.isActive()) {
+				builder.primitive(value);
+			}
+			isStarted = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Parses a page of delta. Each {@link DeltaEntry} is handed to the
+	 * visitor as soon as it has been parsed, after
+	 * {@link DeltaVisitor#onReset()} if the page resets; the "reset", "cursor"
+	 * and "has_more" fields are available after the parsing.
+	 */
+	public static class DeltaHandler implements ContentHandler {
+
+		private final DeltaVisitor visitor;
+		private final EntryBuilder builder = new EntryBuilder();
+
+		/**
+		 * The nesting depth of the JSON outside the entry being built.
+		 */
+		private int depth;
+		private String key;
+		private boolean inEntries;
+
+		private int pairIndex;
+		private String lcPath;
+		private Entry metadata;
+
+		private Boolean reset;
+		private String cursor;
+		private Boolean hasMore;
+		private int entryCount;
+
+		/**
+		 * The entries parsed before "reset", held back until it is known.
+		 */
+		private ArrayList<DeltaEntry<Entry>> pending;
+
+		public DeltaHandler(DeltaVisitor visitor) {
+			this.visitor = visitor;
+		}
+
+		/**
+		 * Returns whether the page has all the fields of a delta page.
+		 */
+		public boolean isComplete() {
+			return reset != null && cursor != null && hasMore != null;
+		}
+
+		public boolean isReset() {
+			return reset != null && reset.booleanValue();
+		}
+
+		public String getCursor() {
+			return cursor;
+		}
+
+		public boolean hasMore() {
+			return hasMore != null && hasMore.booleanValue();
+		}
+
+		/**
+		 * Returns how many entries have been handed to the visitor.
+		 */
+		public int getEntryCount() {
+			return entryCount;
+		}
+
+		public void startJSON() throws ParseException, IOException {
+		}
+
+		public void endJSON() throws ParseException, IOException {
+		}
+
+		public boolean startObject() throws ParseException, IOException {
+			if (builder.isActive() || isMetadataPosition()) {
+				builder.startObject();
+			} else {
+				depth++;
+			}
+			return true;
+		}
+
+		public boolean endObject() throws ParseException, IOException {
+			if (builder.isActive()) {
+				if (builder.endObject()) {
+					metadata = builder.getResult();
+					pairIndex++;
+				}
+			} else {
+				if (depth == 1) {
+					flushPending();
+				}
+				depth--;
+			}
+			return true;
+		}
+
+		public boolean startObjectEntry(String key) throws ParseException,
+				IOException {
+			if (builder.isActive()) {
+				builder.startObjectEntry(key);
+			} else if (depth == 1) {
+				this.key = key;
+			}
+			return true;
+		}
+
+		public boolean endObjectEntry() throws ParseException, IOException {
+			return true;
+		}
+
+		public boolean startArray() throws ParseException, IOException {
+			if (builder.isActive()) {
+				builder.startArray();
+				return true;
+			}
+
+			depth++;
+			if (depth == 2 && "entries".equals(key)) {
+				inEntries = true;
+			} else if (inEntries && depth == 3) {
+				pairIndex = 0;
+				lcPath = null;
+				metadata = null;
+			}
+			return true;
+		}
+
+		public boolean endArray() throws ParseException, IOException {
+			if (builder.isActive()) {
+				builder.endArray();
+				return true;
+			}
+
+			if (inEntries && depth == 3) {
+				if (lcPath == null) {
+					throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN,
+							"delta entry without a path");
+				}
+				deliver(new DeltaEntry<Entry>(lcPath, metadata));
+				lcPath = null;
+				metadata = null;
+			} else if (depth == 2) {
+				inEntries = false;
+			}
+			depth--;
+			return true;
+		}
+
+		public boolean primitive(Object value) throws ParseException,
+				IOException {
+			if (builder.isActive()) {
+				builder.primitive(value);
+			} else if (inEntries && depth == 3) {
+				if (pairIndex == 0 && value instanceof String) {
+					lcPath = (String) value;
+				}
+				pairIndex++;
+			} else if (depth == 1) {
+				if ("reset".equals(key) && value instanceof Boolean) {
+					reset = (Boolean) value;
+					if (reset.booleanValue()) {
+						visitor.onReset();
+					}
+					flushPending();
+				} else if ("cursor".equals(key) && value instanceof String) {
+					cursor = (String) value;
+				} else if ("has_more".equals(key) && value instanceof Boolean) {
+					hasMore = (Boolean) value;
+				}
+			}
+			return true;
+		}
+
+		private void deliver(DeltaEntry<Entry> entry) {
+			if (reset == null) {
+				if (pending == null) {
+					pending = new ArrayList<DeltaEntry<Entry>>();
+				}
+				pending.add(entry);
+				return;
+			}
+			entryCount++;
+			visitor.onDeltaEntry(entry);
+		}
+
+		private void flushPending() {
+			if (pending == null) {
+				return;
+			}
+			ArrayList<DeltaEntry<Entry>> entries = pending;
+			pending = null;
+			for (DeltaEntry<Entry> entry : entries) {
+				entryCount++;
+				visitor.onDeltaEntry(entry);
+			}
+		}
+
+		private boolean isMetadataPosition() {
+			return inEntries && depth == 3 && pairIndex == 1;
+		}
+	}
+}
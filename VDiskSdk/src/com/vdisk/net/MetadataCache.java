@@ -0,0 +1,129 @@
+package com.vdisk.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vdisk.net.VDiskAPI.Entry;
+
+/**
+ * 目录元数据的LRU缓存。{@link VDiskAPI#metadata}会自动带上缓存的hash，服务器返回304时返回缓存的{@link Entry}的副本。
+ *
+ * A bounded LRU cache of folder metadata. {@link VDiskAPI#metadata} sends the
+ * cached hash automatically, and returns a copy of the cached {@link Entry}
+ * when the server answers 304. Entries are copied in and out, so callers
+ * can't change each other's results through the cache.
+ */
+public class MetadataCache {
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hitCount;
+	private long missCount;
+
+	/**
+	 * @param maxEntries
+	 *            the max number of folders kept in the cache.
+	 */
+	public MetadataCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > MetadataCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the key of a metadata request.
+	 */
+	static String key(String path, boolean list, boolean includeDeleted) {
+		return (list ? "1" : "0") + (includeDeleted ? "1" : "0")
+				+ path.toLowerCase();
+	}
+
+	/**
+	 * Returns a copy of the cached metadata, or null. Changing the copy
+	 * doesn't change the cache.
+	 */
+	public Entry get(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		return entry == null ? null : entry.copy();
+	}
+
+	/**
+	 * Caches a copy of the metadata of a folder, so that changing the entry
+	 * later doesn't change the cache. Files and folders without a hash are
+	 * ignored, they can't be validated by the server.
+	 */
+	public void put(String key, Entry entry) {
+		if (entry != null && entry.isDir && entry.hash != null) {
+			Entry copy = entry.copy();
+			synchronized (this) {
+				entries.put(key, copy);
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached metadata of the path.
+	 */
+	public synchronized void remove(String path) {
+		String lcPath = path.toLowerCase();
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().substring(2).equals(lcPath)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached metadata.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	synchronized void hit() {
+		hitCount++;
+	}
+
+	synchronized void miss() {
+		missCount++;
+	}
+
+	/**
+	 * Returns how many times the cached metadata was returned because the
+	 * server answered 304.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns how many times the metadata had to be downloaded.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns how many folders are cached.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+}
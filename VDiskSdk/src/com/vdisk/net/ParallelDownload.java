@@ -0,0 +1,433 @@
+package com.vdisk.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.util.Log;
+
+import com.vdisk.net.RESTUtility.RequestMethod;
+import com.vdisk.net.VDiskAPI.Entry;
+import com.vdisk.net.VDiskAPI.RequestAndResponse;
+import com.vdisk.net.VDiskAPI.SyncPolicy;
+import com.vdisk.net.VDiskAPI.VDiskFileInfo;
+import com.vdisk.net.exception.VDiskException;
+import com.vdisk.net.exception.VDiskIOException;
+import com.vdisk.net.exception.VDiskLocalStorageFullException;
+import com.vdisk.net.exception.VDiskPartialFileException;
+import com.vdisk.net.exception.VDiskServerException;
+import com.vdisk.net.session.Session;
+import com.vdisk.utils.BufferPool;
+
+/**
+ * 多连接分段下载一个文件。文件被切分为多个区间，通过多个连接同时下载，按位置写入预先分配好的临时文件，
+ * 全部下载完成后去掉临时文件的后缀。已下载的区间记录在{@link DownloadJournal}中，可以续传。此下载可以通过abort()中断。
+ *
+ * Downloads a file over several connections. The file is split into ranges
+ * which are downloaded at the same time and written by positional writes into
+ * a preallocated temp file. The temp file suffix is removed after all the
+ * ranges are downloaded. The downloaded ranges are recorded in a
+ * {@link DownloadJournal}, so the download can be resumed. This download can
+ * be canceled by calling abort().
+ */
+public class ParallelDownload {
+
+	private static final String TAG = "ParallelDownload";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE,
+			8);
+
+	private final Session session;
+	private final VDiskFileInfo fileInfo;
+	private final File targetFile;
+	private final int threads;
+	private final long chunkSize;
+	private final ProgressListener listener;
+
+	private final Set<HttpUriRequest> requests = new HashSet<HttpUriRequest>();
+	private final List<Integer> unrecordedChunks = new ArrayList<Integer>();
+	// 上次同步的时间，由unrecordedChunks保护 // When the file was last synced,
+	// guarded by unrecordedChunks
+	private long lastSync = System.currentTimeMillis();
+	private final SyncPolicy syncPolicy = VDiskAPI.DOWNLOAD_SYNC_POLICY;
+	private volatile boolean isCanceled;
+
+	private long downloaded;
+	private long lastListened;
+
+	/**
+	 * @param session
+	 *            the session to use.
+	 * @param fileInfo
+	 *            the info of the file, including the download url.
+	 * @param targetFile
+	 *            the temp file to download to.
+	 * @param threads
+	 *            how many ranges are downloaded at the same time.
+	 * @param chunkSize
+	 *            the size of each range.
+	 * @param listener
+	 *            an optional {@link ProgressListener} to receive progress
+	 *            updates as the file downloads, or null.
+	 */
+	public ParallelDownload(Session session, VDiskFileInfo fileInfo,
+			File targetFile, int threads, long chunkSize,
+			ProgressListener listener) {
+		this.session = session;
+		this.fileInfo = fileInfo;
+		this.targetFile = targetFile;
+		this.threads = Math.max(1, threads);
+		this.chunkSize = chunkSize;
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the {@link VDiskFileInfo} for the associated file.
+	 */
+	public VDiskFileInfo getFileInfo() {
+		return fileInfo;
+	}
+
+	/**
+	 * Aborts the download. The original call to download() will throw a
+	 * {@link VDiskPartialFileException}.
+	 */
+	public void abort() {
+		isCanceled = true;
+
+		final HttpUriRequest[] current;
+		synchronized (requests) {
+			current = requests.toArray(new HttpUriRequest[requests.size()]);
+		}
+
+		// 4.0系统网络操作需放到子线程执行，避免发生NetworkOnMainThreadException异常。
+		// In Android4.0, network operations need to be executed in a child
+		// thread to avoid NetworkOnMainThreadException.
+		new Thread() {
+			@Override
+			public void run() {
+				for (HttpUriRequest request : current) {
+					request.abort();
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Downloads the file.
+	 *
+	 * @return the {@link VDiskFileInfo} for the downloaded file.
+	 *
+	 * @throws VDiskPartialFileException
+	 *             if the download is canceled, fails in the middle, or the
+	 *             file changed on the server while downloading.
+	 * @throws VDiskLocalStorageFullException
+	 *             if there is no more room to write to the temp file.
+	 * @throws VDiskIOException
+	 *             for network-related errors.
+	 * @throws VDiskException
+	 *             for any other unknown errors.
+	 */
+	public VDiskFileInfo download() throws VDiskException {
+		Entry metadata = fileInfo.getMetadata();
+		long fileSize = fileInfo.getFileSize();
+
+		// 续传时只下载日志中没有记录的分块 // When resuming, only download the
+		// chunks not recorded in the journal
+		final DownloadJournal journal = DownloadJournal.open(targetFile,
+				metadata.md5, fileSize, chunkSize);
+		final List<Integer> missing = new ArrayList<Integer>();
+		for (int i = 0; i < journal.getChunkNum(); i++) {
+			if (!journal.isChunkVerified(i)) {
+				missing.add(i);
+			}
+		}
+		long verifiedBytes = journal.getVerifiedBytes();
+		synchronized (this) {
+			downloaded = verifiedBytes;
+		}
+
+		Log.d(TAG, "missing chunks-->" + missing.size() + ";chunkNum-->"
+				+ journal.getChunkNum());
+
+		RandomAccessFile file = null;
+		ExecutorService executor = null;
+		boolean finished = false;
+		boolean matched = true;
+		try {
+			file = new RandomAccessFile(targetFile, "rw");
+			if (verifiedBytes == 0) {
+				// 临时文件中没有可信的数据 // Nothing in the temp file can be
+				// trusted
+				file.setLength(0);
+			}
+			// 预先分配文件空间 // Preallocate the temp file
+			file.setLength(fileSize);
+			final FileChannel channel = file.getChannel();
+
+			if (VDiskAPI.DOWNLOAD_VERIFY) {
+				journal.startVerify(metadata, channel);
+			}
+
+			int workers = Math.max(1, Math.min(threads, missing.size()));
+			executor = Executors.newFixedThreadPool(workers);
+			CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
+					executor);
+
+			final AtomicInteger next = new AtomicInteger();
+			for (int i = 0; i < workers; i++) {
+				completionService.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						int n;
+						while ((n = next.getAndIncrement()) < missing.size()) {
+							downloadChunk(channel, journal, missing.get(n));
+						}
+						return null;
+					}
+				});
+			}
+
+			for (int i = 0; i < workers; i++) {
+				takeChunkResult(completionService);
+			}
+
+			recordChunks(channel, journal);
+			// 所有分块都已写入，计算剩下的空缺 // Every chunk is written, hash
+			// the gaps left
+			journal.catchUp(channel, fileSize);
+			matched = journal.verify();
+			finished = true;
+		} catch (IOException e) {
+			throw toVDiskException(e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			if (!finished) {
+				abortRequests();
+				if (file != null) {
+					// 下载中断时同步一次，记录已下载的分块 // When the download is
+					// interrupted, sync once and record the downloaded chunks
+					try {
+						recordChunks(file.getChannel(), journal);
+					} catch (IOException e) {
+					}
+				}
+			}
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		journal.delete();
+		if (!matched) {
+			// 文件内容与服务器上的不一致 // The content doesn't match the file on
+			// the server
+			targetFile.delete();
+			throw new VDiskPartialFileException(0);
+		}
+
+		VDiskAPI.renameDownloadTempFile(targetFile);
+		return fileInfo;
+	}
+
+	private void downloadChunk(FileChannel channel, DownloadJournal journal,
+			int index) throws VDiskException {
+		if (isCanceled) {
+			throw new VDiskPartialFileException(getDownloaded());
+		}
+
+		long start = journal.getChunkStart(index);
+		long end = journal.getChunkEnd(index) - 1;
+
+		RequestAndResponse rp = RESTUtility.streamRequestAndResponse(
+				RequestMethod.GET, session, fileInfo.getDownloadURL(), null,
+				start, end, fileInfo.getMetadata().md5, false, -1, true);
+
+		synchronized (requests) {
+			requests.add(rp.request);
+		}
+
+		byte[] buffer = BUFFER_POOL.acquire();
+		InputStream in = null;
+		boolean completed = false;
+		try {
+			if (isCanceled) {
+				throw new VDiskPartialFileException(getDownloaded());
+			}
+
+			int code = rp.response.getStatusLine().getStatusCode();
+			if (code != VDiskServerException._206_OK) {
+				// If-Range不匹配时服务器返回整个文件 // The server returns the
+				// whole file if If-Range doesn't match
+				Log.d(TAG, "file changed on server, status code: " + code);
+				throw new VDiskPartialFileException(getDownloaded());
+			}
+
+			HttpEntity entity = rp.response.getEntity();
+			if (entity == null) {
+				throw new VDiskPartialFileException(getDownloaded());
+			}
+			in = entity.getContent();
+
+			long position = start;
+			int read;
+			while (position <= end
+					&& (read = in.read(buffer, 0,
+							(int) Math.min(buffer.length, end + 1 - position))) >= 0) {
+				// 按顺序到达的数据直接计算摘要，不需要再读 // Bytes arriving in
+				// order are hashed as they're written, without reading them
+				// again
+				journal.update(position, buffer, 0, read);
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+				while (byteBuffer.hasRemaining()) {
+					position += channel.write(byteBuffer, position);
+				}
+				chunkProgress(read);
+			}
+
+			if (position <= end) {
+				throw new VDiskPartialFileException(getDownloaded());
+			}
+
+			// 读完响应，连接可以复用 // Consume the response so that the
+			// connection can be reused
+			entity.consumeContent();
+
+			// 分块同步到磁盘后才记录到日志 // Record the chunk in the journal
+			// after it is synced to disk
+			// 不同步时不记录，未同步的数据不可信 // Nothing is recorded without
+			// syncing, data which isn't synced can't be trusted
+			if (syncPolicy == SyncPolicy.ON_COMPLETION) {
+				boolean isDue;
+				synchronized (unrecordedChunks) {
+					unrecordedChunks.add(index);
+					isDue = VDiskAPI.isSyncDue(syncPolicy,
+							unrecordedChunks.size(), lastSync);
+				}
+				if (isDue) {
+					// 攒够一批后同步并记录 // Sync and record a batch
+					recordChunks(channel, journal);
+					journal.catchUp(channel);
+				}
+			} else if (syncPolicy == SyncPolicy.ALWAYS) {
+				channel.force(false);
+				journal.markChunkVerified(index);
+				// 只有乱序的分块需要从文件读取 // Only chunks out of order are
+				// read back from the file
+				journal.catchUp(channel);
+			}
+			completed = true;
+		} catch (IOException e) {
+			if (isCanceled) {
+				throw new VDiskPartialFileException(getDownloaded());
+			}
+			throw toVDiskException(e);
+		} finally {
+			synchronized (requests) {
+				requests.remove(rp.request);
+			}
+			if (!completed) {
+				// Aborting the request also closes the input stream.
+				rp.request.abort();
+			}
+			BUFFER_POOL.release(buffer);
+		}
+	}
+
+	/**
+	 * Syncs the temp file once and records the chunks downloaded since the
+	 * last sync, used by {@link SyncPolicy#ON_COMPLETION} for each batch.
+	 */
+	private void recordChunks(FileChannel channel, DownloadJournal journal)
+			throws IOException {
+		synchronized (unrecordedChunks) {
+			if (unrecordedChunks.isEmpty()) {
+				return;
+			}
+			channel.force(false);
+			lastSync = System.currentTimeMillis();
+			for (Integer index : unrecordedChunks) {
+				journal.markChunkVerified(index);
+			}
+			unrecordedChunks.clear();
+		}
+	}
+
+	private synchronized long getDownloaded() {
+		return downloaded;
+	}
+
+	private synchronized void chunkProgress(int bytes) {
+		downloaded += bytes;
+		if (listener != null) {
+			long now = System.currentTimeMillis();
+			if (now - lastListened > listener.progressInterval()) {
+				lastListened = now;
+				listener.onProgress(downloaded, fileInfo.getFileSize());
+			}
+		}
+	}
+
+	private void abortRequests() {
+		List<HttpUriRequest> current;
+		synchronized (requests) {
+			current = new ArrayList<HttpUriRequest>(requests);
+		}
+		for (HttpUriRequest request : current) {
+			request.abort();
+		}
+	}
+
+	private VDiskException toVDiskException(IOException e) {
+		String message = e.getMessage();
+		if (message != null && message.startsWith("No space")) {
+			// This is a hack, but it seems to be the only way to check which
+			// exception it is.
+			return new VDiskLocalStorageFullException();
+		}
+		e.printStackTrace();
+		return new VDiskPartialFileException(getDownloaded());
+	}
+
+	private void takeChunkResult(CompletionService<Void> completionService)
+			throws VDiskException {
+		try {
+			completionService.take().get();
+		} catch (InterruptedException e) {
+			throw new VDiskPartialFileException(getDownloaded());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof VDiskException) {
+				throw (VDiskException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new VDiskException(cause);
+		}
+	}
+}
@@ -10,34 +10,28 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.SSLException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
-import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -46,6 +40,7 @@ import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -61,11 +56,14 @@ import com.vdisk.net.exception.VDiskSSLException;
 import com.vdisk.net.exception.VDiskServerException;
 import com.vdisk.net.exception.VDiskUnlinkedException;
 import com.vdisk.net.session.AbstractSession;
+import com.vdisk.net.session.ApacheHttpTransport;
+import com.vdisk.net.session.HttpTransport;
 import com.vdisk.net.session.Session;
-import com.vdisk.net.session.Session.ProxyInfo;
 import com.vdisk.net.session.WeiboAccessToken;
+import com.vdisk.utils.HttpDate;
 import com.vdisk.utils.Logger;
 import com.vdisk.utils.Signature;
+import com.vdisk.utils.SingleFlight;
 
 /**
  * This class is mostly used internally by {@link VDiskAPI} for creating and
@@ -79,8 +77,6 @@ public class RESTUtility {
 	private RESTUtility() {
 	}
 
-	private static final DateFormat dateFormat = new SimpleDateFormat(
-			"EEE, dd MMM yyyy kk:mm:ss ZZZZZ", Locale.US);
 	private final static String TAG = RESTUtility.class.getSimpleName();
 
 	public enum RequestMethod {
@@ -131,17 +127,106 @@ public class RESTUtility {
 	static public Object request(RequestMethod method, String host,
 			String path, int apiVersion, String[] params, Session session)
 			throws VDiskException {
-		HttpResponse resp = streamRequest(method, host, path, apiVersion,
-				params, session).response;
-		return parseAsJSON(resp);
+		return request(method, host, path, apiVersion, params, session, -1);
 	}
 
-	static public Object request(RequestMethod method, String host,
+	static public Object request(final RequestMethod method,
+			final String host, final String path, final int apiVersion,
+			final String[] params, final Session session,
+			final int socketTimeoutOverrideMs) throws VDiskException {
+		if (method != RequestMethod.GET || !VDiskAPI.COALESCE_REQUESTS) {
+			HttpResponse resp = streamRequest(method, host, path, apiVersion,
+					params, session, true, socketTimeoutOverrideMs).response;
+			return parseAsJSON(resp);
+		}
+
+		// 相同的GET请求同时只发送一次，共享解析后的结果 // Identical GETs in
+		// flight are sent once, and the parsed result is shared
+		FlightKey key = new FlightKey(session, method, buildURL(host,
+				apiVersion, path, params));
+		return coalesce(key, new Callable<Object>() {
+			public Object call() throws Exception {
+				HttpResponse resp = streamRequest(method, host, path,
+						apiVersion, params, session, true,
+						socketTimeoutOverrideMs).response;
+				return parseAsJSON(resp);
+			}
+		});
+	}
+
+	/**
+	 * The in-flight GET requests, see {@link VDiskAPI#COALESCE_REQUESTS}.
+	 */
+	private static final SingleFlight<FlightKey, Object> getFlights = new SingleFlight<FlightKey, Object>();
+
+	/**
+	 * Identifies a request: the same URL of another session is a different
+	 * request.
+	 */
+	private static final class FlightKey {
+		private final Session session;
+		private final RequestMethod method;
+		private final String url;
+
+		FlightKey(Session session, RequestMethod method, String url) {
+			this.session = session;
+			this.method = method;
+			this.url = url;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof FlightKey)) {
+				return false;
+			}
+			FlightKey other = (FlightKey) o;
+			return session == other.session && method == other.method
+					&& url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(session) * 31 + url.hashCode();
+		}
+	}
+
+	private static Object coalesce(FlightKey key, Callable<Object> call)
+			throws VDiskException {
+		try {
+			return getFlights.execute(key, call);
+		} catch (VDiskException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VDiskException("Interrupted while waiting for the request.", e);
+		} catch (Exception e) {
+			throw new VDiskException(e);
+		}
+	}
+
+	/**
+	 * Returns how many GET requests have been answered with the result of an
+	 * identical request in flight instead of being sent.
+	 */
+	public static long getCoalescedRequestCount() {
+		return getFlights.getSharedCount();
+	}
+
+	/**
+	 * Creates and sends a request to the VDisk API, and parses the JSON
+	 * response with a streaming {@link ContentHandler}.
+	 * 
+	 * @see #request(RequestMethod, String, String, int, String[], Session)
+	 * @see #parseAsJSON(HttpResponse, ContentHandler)
+	 */
+	static public void request(RequestMethod method, String host,
 			String path, int apiVersion, String[] params, Session session,
-			int socketTimeoutOverrideMs) throws VDiskException {
+			ContentHandler handler) throws VDiskException {
 		HttpResponse resp = streamRequest(method, host, path, apiVersion,
-				params, session, true, socketTimeoutOverrideMs).response;
-		return parseAsJSON(resp);
+				params, session).response;
+		parseAsJSON(resp, handler);
 	}
 
 	/**
@@ -218,6 +303,28 @@ public class RESTUtility {
 			RequestMethod method, Session session, String target,
 			String params[], long range, String md5, boolean needSign,
 			int socketTimeoutOverrideMs, boolean handleRedirect) throws VDiskException {
+		return streamRequestAndResponse(method, session, target, params,
+				range, -1, md5, needSign, socketTimeoutOverrideMs,
+				handleRedirect);
+	}
+
+	/**
+	 * Creates a request that gets a range of the file.
+	 * 
+	 * @param rangeStart
+	 *            the first byte of the range.
+	 * @param rangeEnd
+	 *            the last byte of the range (inclusive), or -1 to get the
+	 *            file from rangeStart to the end.
+	 * @param md5
+	 *            the md5 of the file, sent as If-Range, so that the whole file
+	 *            is returned instead of the range if the file has changed.
+	 */
+	static public RequestAndResponse streamRequestAndResponse(
+			RequestMethod method, Session session, String target,
+			String params[], long rangeStart, long rangeEnd, String md5,
+			boolean needSign, int socketTimeoutOverrideMs,
+			boolean handleRedirect) throws VDiskException {
 
 		String curlHeader = "";
 		if (Logger.DEBUG_MODE) {
@@ -240,8 +347,13 @@ public class RESTUtility {
 		HttpUriRequest req = null;
 		if (method == RequestMethod.GET) {
 			req = new HttpGet(target);
-			if (range > 0 && md5 != null) {
-				req.setHeader("Range", "bytes=" + range + "-");// 设置下载范围 // Set download range
+			if (rangeEnd >= 0) {
+				req.setHeader("Range", "bytes=" + rangeStart + "-" + rangeEnd);// 设置下载范围 // Set download range
+				if (md5 != null) {
+					req.setHeader("If-Range", "\"" + md5 + "\"");
+				}
+			} else if (rangeStart > 0 && md5 != null) {
+				req.setHeader("Range", "bytes=" + rangeStart + "-");// 设置下载范围 // Set download range
 				req.setHeader("If-Range", "\"" + md5 + "\"");
 			}
 
@@ -442,6 +554,69 @@ public class RESTUtility {
 		return result;
 	}
 
+	/**
+	 * Parses the JSON body of an {@link HttpResponse} with a streaming
+	 * {@link ContentHandler}, without building the JSONObject/JSONArray tree.
+	 * Error responses are parsed and thrown the same way as
+	 * {@link #parseAsJSON(HttpResponse)}.
+	 * 
+	 * @param response
+	 *            the {@link HttpResponse}.
+	 * @param handler
+	 *            receives the parsing events of a successful response.
+	 * 
+	 * @throws VDiskServerException
+	 *             if the server responds with an error code.
+	 * @throws VDiskIOException
+	 *             if any network-related error occurs while reading in content
+	 *             from the {@link HttpResponse}.
+	 * @throws VDiskUnlinkedException
+	 *             if the user has revoked access.
+	 * @throws VDiskParseException
+	 *             if a malformed or unknown response was received from the
+	 *             server.
+	 */
+	public static void parseAsJSON(HttpResponse response,
+			ContentHandler handler) throws VDiskException {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != VDiskServerException._200_OK) {
+			// 错误信息很小，按原来的方式解析并抛出 // Error bodies are small, parse
+			// and throw them the usual way
+			parseAsJSON(response);
+			return;
+		}
+
+		HttpEntity ent = response.getEntity();
+		if (ent == null) {
+			throw new VDiskParseException(
+					"Response code is 200, but body is empty");
+		}
+
+		BufferedReader bin = null;
+		try {
+			bin = new BufferedReader(new InputStreamReader(ent.getContent()),
+					8192);
+			JSONParser parser = new JSONParser();
+			parser.parse(bin, handler);
+		} catch (IOException e) {
+			if (Logger.DEBUG_MODE) {
+				Logger.writeException(e);
+			}
+			throw new VDiskIOException(e);
+		} catch (ParseException e) {
+			throw new VDiskParseException("failed to parse: " + e);
+		} catch (OutOfMemoryError e) {
+			throw new VDiskException(e);
+		} finally {
+			if (bin != null) {
+				try {
+					bin.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Reads in content from an {@link HttpResponse} and parses it as a query
 	 * string.
@@ -552,7 +727,10 @@ public class RESTUtility {
 	 */
 	public static HttpResponse execute(Session session, HttpUriRequest req,
 			int socketTimeoutOverrideMs) throws VDiskException {
-		HttpClient client = updatedHttpClient(session);
+		// 自定义的Session没有传输层，使用它的HttpClient // A custom session
+		// has no transport, its HttpClient is used
+		HttpTransport transport = session instanceof AbstractSession ? ((AbstractSession) session)
+				.getHttpTransport() : new ApacheHttpTransport(session);
 		// Set request timeouts.
 		session.setRequestTimeout(req);
 		if (socketTimeoutOverrideMs >= 0) {
@@ -564,36 +742,13 @@ public class RESTUtility {
 		boolean retry = true;
 		int executionCount = 0;
 		IOException cause = null;
-		HttpRequestRetryHandler retryHandler = ((DefaultHttpClient) client)
-				.getHttpRequestRetryHandler();
+		HttpRequestRetryHandler retryHandler = transport.getRetryHandler();
 
 		HttpContext localContext = new BasicHttpContext();
 
 		while (retry) {
 			try {
-				HttpResponse response = null;
-				for (int retries = 0; response == null && retries < 5; retries++) {
-					/*
-					 * The try/catch is a workaround for a bug in the HttpClient
-					 * libraries. It should be returning null instead when an
-					 * error occurs. Fixed in HttpClient 4.1, but we're stuck
-					 * with this for now. See:
-					 * http://code.google.com/p/android/issues/detail?id=5255
-					 */
-					try {
-						response = client.execute(req, localContext);
-					} catch (NullPointerException e) {
-					}
-
-					/*
-					 * We've potentially connected to a different network, but
-					 * are still using the old proxy settings. Refresh proxy
-					 * settings so that we can retry this request.
-					 */
-					if (response == null) {
-						updateClientProxy(client, session);
-					}
-				}
+				HttpResponse response = transport.execute(req, localContext);
 
 				if (response == null) {
 					// This is from that bug, and retrying hasn't fixed it.
@@ -712,48 +867,16 @@ public class RESTUtility {
 
 	/**
 	 * Parses a date/time returned by the VDisk API. Returns null if it cannot
-	 * be parsed.
+	 * be parsed. It's safe to call from several threads at the same time.
 	 * 
 	 * @param date
 	 *            a date returned by the API.
 	 * 
 	 * @return a {@link Date}.
+	 * @see HttpDate
 	 */
 	public static Date parseDate(String date) {
-		try {
-			return dateFormat.parse(date);
-		} catch (java.text.ParseException e) {
-			return null;
-		}
-	}
-
-	/**
-	 * Gets the session's client and updates its proxy.
-	 */
-	private static synchronized HttpClient updatedHttpClient(Session session) {
-		HttpClient client = session.getHttpClient();
-		updateClientProxy(client, session);
-		return client;
-	}
-
-	/**
-	 * Updates the given client's proxy from the session.
-	 */
-	private static void updateClientProxy(HttpClient client, Session session) {
-		ProxyInfo proxyInfo = session.getProxyInfo();
-		if (proxyInfo != null && proxyInfo.host != null
-				&& !proxyInfo.host.equals("")) {
-			HttpHost proxy;
-			if (proxyInfo.port < 0) {
-				proxy = new HttpHost(proxyInfo.host);
-			} else {
-				proxy = new HttpHost(proxyInfo.host, proxyInfo.port);
-			}
-			client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
-					proxy);
-		} else {
-			client.getParams().removeParameter(ConnRoutePNames.DEFAULT_PROXY);
-		}
+		return HttpDate.parseDate(date);
 	}
 
 	/**
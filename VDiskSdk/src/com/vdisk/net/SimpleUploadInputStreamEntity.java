@@ -3,12 +3,6 @@ package com.vdisk.net;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import org.apache.http.entity.AbstractHttpEntity;
 
@@ -52,7 +46,7 @@ public class SimpleUploadInputStreamEntity extends AbstractHttpEntity {
 		if (this.length < 0) {
 			// consume until EOF
 			while ((l = instream.read(buffer)) != -1) {
-				judgeTransfer(outstream, buffer, l);
+				outstream.write(buffer, 0, l);
 			}
 		} else {
 			// consume no more than length
@@ -63,7 +57,7 @@ public class SimpleUploadInputStreamEntity extends AbstractHttpEntity {
 				if (l == -1) {
 					break;
 				}
-				judgeTransfer(outstream, buffer, l);
+				outstream.write(buffer, 0, l);
 				remaining -= l;
 			}
 		}
@@ -83,40 +77,4 @@ public class SimpleUploadInputStreamEntity extends AbstractHttpEntity {
 		this.content.close();
 	}
 
-	ExecutorService executor = Executors.newSingleThreadExecutor();
-
-	public boolean judgeTransfer(final OutputStream bos, final byte[] buffer,
-			final int len) throws IOException {
-
-		Future<String> result = executor.submit(new Callable<String>() {
-
-			@Override
-			public String call() throws Exception {
-
-				bos.write(buffer, 0, len);
-				bos.flush();
-
-				return "success";
-			}
-		});
-
-		String str;
-		try {
-			str = result.get(VDiskAPI.UPLOAD_RESPONSE_TIMEOUT_S,
-					TimeUnit.SECONDS);
-		} catch (TimeoutException e) {
-			e.printStackTrace();
-			throw new IOException("Long time no response.");
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IOException();
-		}
-
-		if (str != null) {
-			return true;
-		}
-
-		return false;
-	}
-
 }
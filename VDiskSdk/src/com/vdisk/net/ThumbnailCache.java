@@ -0,0 +1,440 @@
+package com.vdisk.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.vdisk.net.VDiskAPI.ThumbSize;
+import com.vdisk.utils.Digest;
+
+/**
+ * 两级缩略图缓存：按字节数限制大小的内存LRU，后面是限制总大小的磁盘缓存。以路径和{@link ThumbSize}为key，
+ * 并保存文件的rev，rev变化时缓存的缩略图失效。
+ *
+ * A two tier thumbnail cache: an in-memory LRU bounded by bytes in front of a
+ * size capped on-disk store. Thumbnails are keyed by path and
+ * {@link ThumbSize}, and stored with the rev of the file, so a thumbnail is
+ * invalidated when the rev of the file changes.
+ */
+public class ThumbnailCache {
+
+	private static final String TAG = "ThumbnailCache";
+
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	private static final class Thumbnail {
+		final String rev;
+		final byte[] data;
+
+		Thumbnail(String rev, byte[] data) {
+			this.rev = rev;
+			this.data = data;
+		}
+	}
+
+	private final long maxMemoryBytes;
+	private final File diskDir;
+	private final long maxDiskBytes;
+
+	private final LinkedHashMap<String, Thumbnail> memory = new LinkedHashMap<String, Thumbnail>(
+			16, 0.75f, true);
+	private long memoryBytes;
+
+	/**
+	 * The files in the disk store and their lengths, least recently used
+	 * first.
+	 */
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+	private long diskBytes;
+
+	private long memoryHitCount;
+	private long diskHitCount;
+	private long missCount;
+	private long memoryEvictionCount;
+	private long diskEvictionCount;
+	private long invalidationCount;
+
+	/**
+	 * @param maxMemoryBytes
+	 *            the max bytes of thumbnails kept in memory.
+	 * @param diskDir
+	 *            the directory of the disk store, or null to keep thumbnails
+	 *            in memory only.
+	 * @param maxDiskBytes
+	 *            the max bytes of thumbnails kept on disk.
+	 */
+	public ThumbnailCache(long maxMemoryBytes, File diskDir, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.diskDir = diskDir;
+		this.maxDiskBytes = maxDiskBytes;
+
+		if (diskDir != null) {
+			loadDiskIndex();
+		}
+	}
+
+	/**
+	 * Returns the key of a thumbnail.
+	 */
+	static String key(String path, ThumbSize size) {
+		if (!path.startsWith("/")) {
+			path = "/" + path;
+		}
+		return path.toLowerCase() + "#" + size.toAPISize();
+	}
+
+	/**
+	 * Returns the cached thumbnail of the file, or null. A thumbnail cached
+	 * for another rev of the file is removed.
+	 *
+	 * @param path
+	 *            the VDisk path of the file.
+	 * @param rev
+	 *            the current rev of the file.
+	 * @param size
+	 * @return the data of the thumbnail, which must not be modified.
+	 */
+	public byte[] get(String path, String rev, ThumbSize size) {
+		if (rev == null) {
+			return null;
+		}
+
+		String key = key(path, size);
+		synchronized (this) {
+			Thumbnail thumbnail = memory.get(key);
+			if (thumbnail != null) {
+				if (rev.equals(thumbnail.rev)) {
+					memoryHitCount++;
+					return thumbnail.data;
+				}
+				invalidate(key);
+				missCount++;
+				return null;
+			}
+		}
+
+		Thumbnail thumbnail = readFromDisk(key);
+		synchronized (this) {
+			// 读磁盘时可能有新的缩略图被put，以内存中的为准 // A thumbnail may
+			// have been put while reading the disk, the one in memory wins
+			Thumbnail current = memory.get(key);
+			if (current != null) {
+				if (rev.equals(current.rev)) {
+					memoryHitCount++;
+					return current.data;
+				}
+				missCount++;
+				return null;
+			}
+
+			if (thumbnail == null) {
+				missCount++;
+				return null;
+			}
+			if (!rev.equals(thumbnail.rev)) {
+				invalidate(key);
+				missCount++;
+				return null;
+			}
+
+			diskHitCount++;
+			putInMemory(key, thumbnail);
+			return thumbnail.data;
+		}
+	}
+
+	/**
+	 * Caches the thumbnail of the file, replacing the one of another rev.
+	 *
+	 * @param path
+	 *            the VDisk path of the file.
+	 * @param rev
+	 *            the rev of the file the thumbnail was made from.
+	 * @param size
+	 * @param data
+	 *            the data of the thumbnail, which must not be modified later.
+	 */
+	public void put(String path, String rev, ThumbSize size, byte[] data) {
+		if (rev == null || data == null) {
+			return;
+		}
+
+		String key = key(path, size);
+		Thumbnail thumbnail = new Thumbnail(rev, data);
+		synchronized (this) {
+			putInMemory(key, thumbnail);
+		}
+		writeToDisk(key, thumbnail);
+	}
+
+	/**
+	 * Removes the thumbnails of all sizes of the file.
+	 */
+	public void remove(String path) {
+		for (ThumbSize size : ThumbSize.values()) {
+			String key = key(path, size);
+			synchronized (this) {
+				removeFromMemory(key);
+				removeFromDisk(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the cached thumbnails.
+	 */
+	public synchronized void clear() {
+		memory.clear();
+		memoryBytes = 0;
+
+		Iterator<String> iterator = disk.keySet().iterator();
+		while (iterator.hasNext()) {
+			new File(diskDir, iterator.next()).delete();
+			iterator.remove();
+		}
+		diskBytes = 0;
+	}
+
+	private void invalidate(String key) {
+		removeFromMemory(key);
+		removeFromDisk(key);
+		invalidationCount++;
+	}
+
+	private void putInMemory(String key, Thumbnail thumbnail) {
+		if (thumbnail.data.length > maxMemoryBytes) {
+			removeFromMemory(key);
+			return;
+		}
+
+		Thumbnail old = memory.put(key, thumbnail);
+		if (old != null) {
+			memoryBytes -= old.data.length;
+		}
+		memoryBytes += thumbnail.data.length;
+
+		Iterator<Thumbnail> iterator = memory.values().iterator();
+		while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+			memoryBytes -= iterator.next().data.length;
+			iterator.remove();
+			memoryEvictionCount++;
+		}
+	}
+
+	private void removeFromMemory(String key) {
+		Thumbnail old = memory.remove(key);
+		if (old != null) {
+			memoryBytes -= old.data.length;
+		}
+	}
+
+	private void loadDiskIndex() {
+		if (!diskDir.exists() && !diskDir.mkdirs()) {
+			Log.d(TAG, "can't create " + diskDir);
+			return;
+		}
+
+		File[] files = diskDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		synchronized (this) {
+			for (File file : files) {
+				if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+					file.delete();
+				} else if (file.isFile()) {
+					disk.put(file.getName(), file.length());
+					diskBytes += file.length();
+				}
+			}
+			trimDisk();
+		}
+	}
+
+	private Thumbnail readFromDisk(String key) {
+		if (diskDir == null) {
+			return null;
+		}
+
+		String name = fileName(key);
+		synchronized (this) {
+			if (disk.get(name) == null) {
+				return null;
+			}
+		}
+
+		File file = new File(diskDir, name);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			String rev = in.readUTF();
+			int length = in.readInt();
+			if (length < 0 || length > file.length()) {
+				throw new IOException("Invalid length " + length + " in "
+						+ file);
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			file.setLastModified(System.currentTimeMillis());
+			return new Thumbnail(rev, data);
+		} catch (IOException e) {
+			synchronized (this) {
+				removeFromDisk(key);
+			}
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void writeToDisk(String key, Thumbnail thumbnail) {
+		if (diskDir == null || thumbnail.data.length > maxDiskBytes) {
+			return;
+		}
+
+		String name = fileName(key);
+		File tempFile = new File(diskDir, name + "." + Thread.currentThread().getId()
+				+ TEMP_FILE_SUFFIX);
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					tempFile));
+			try {
+				out.writeUTF(thumbnail.rev);
+				out.writeInt(thumbnail.data.length);
+				out.write(thumbnail.data);
+			} finally {
+				out.close();
+			}
+
+			synchronized (this) {
+				File file = new File(diskDir, name);
+				if (!tempFile.renameTo(file)) {
+					throw new IOException("Can't write " + file);
+				}
+				Long old = disk.put(name, file.length());
+				if (old != null) {
+					diskBytes -= old;
+				}
+				diskBytes += file.length();
+				trimDisk();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "can't cache thumbnail: " + e.getMessage());
+			tempFile.delete();
+		}
+	}
+
+	private void removeFromDisk(String key) {
+		if (diskDir == null) {
+			return;
+		}
+		String name = fileName(key);
+		Long old = disk.remove(name);
+		if (old != null) {
+			diskBytes -= old;
+			new File(diskDir, name).delete();
+		}
+	}
+
+	private void trimDisk() {
+		Iterator<Map.Entry<String, Long>> iterator = disk.entrySet()
+				.iterator();
+		while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			new File(diskDir, eldest.getKey()).delete();
+			diskBytes -= eldest.getValue();
+			iterator.remove();
+			diskEvictionCount++;
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return Digest.toHexString(md.digest(key.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+
+	public synchronized long getMemoryHitCount() {
+		return memoryHitCount;
+	}
+
+	public synchronized long getDiskHitCount() {
+		return diskHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the share of lookups answered from memory or disk, from 0 to 1.
+	 */
+	public synchronized float getHitRate() {
+		long hits = memoryHitCount + diskHitCount;
+		long total = hits + missCount;
+		return total == 0 ? 0 : (float) hits / total;
+	}
+
+	/**
+	 * Returns how many thumbnails have been evicted from memory to stay under
+	 * the memory limit.
+	 */
+	public synchronized long getMemoryEvictionCount() {
+		return memoryEvictionCount;
+	}
+
+	/**
+	 * Returns how many thumbnails have been deleted from disk to stay under
+	 * the disk limit.
+	 */
+	public synchronized long getDiskEvictionCount() {
+		return diskEvictionCount;
+	}
+
+	/**
+	 * Returns how many thumbnails have been removed because the rev of the
+	 * file changed.
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidationCount;
+	}
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+}
@@ -0,0 +1,300 @@
+package com.vdisk.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.vdisk.net.VDiskAPI.Entry;
+import com.vdisk.net.VDiskAPI.ThumbSize;
+import com.vdisk.net.exception.VDiskException;
+import com.vdisk.net.session.AbstractSession;
+
+/**
+ * 按优先级加载缩略图：可见的缩略图先于预取的缩略图，同一优先级中最后请求的先加载(LIFO)，快速滑动相册时当前屏幕的缩略图不会排在已经划过的后面。
+ * 同一张缩略图的多个请求只加载一次，每个请求可以单独取消。
+ *
+ * Loads thumbnails by priority: visible thumbnails before prefetched ones,
+ * and within the same priority the latest request first (LIFO), so that when
+ * the user flings through an album the thumbnails on screen don't wait behind
+ * the ones already scrolled past. Requests for the same thumbnail are loaded
+ * once, and each request can be canceled on its own.
+ *
+ * At most {@link VDiskAPI#THUMBNAIL_LOADER_THREADS} thumbnails are loaded at
+ * the same time, and no more than
+ * {@link AbstractSession#MAX_DOWNLOAD_CONNECTIONS} - 1 when the loader is
+ * created, so a visible thumbnail never waits for a pooled connection held
+ * by a prefetch. Thumbnails are loaded with
+ * {@link VDiskAPI#getThumbnailBytes(Entry, ThumbSize)}, which uses the
+ * {@link ThumbnailCache} of the api if it's set.
+ */
+public class ThumbnailLoader {
+
+	private static final String TAG = "ThumbnailLoader";
+
+	/**
+	 * Receives the loaded thumbnails. The methods are called on a loader
+	 * thread, not on the UI thread.
+	 */
+	public interface Callback {
+		void onThumbnailLoaded(Entry entry, ThumbSize size, byte[] data);
+
+		void onThumbnailFailed(Entry entry, ThumbSize size, VDiskException e);
+	}
+
+	/**
+	 * A request for a thumbnail, which can be canceled.
+	 */
+	public final class Request {
+		private final Task task;
+		private final Callback callback;
+		private volatile boolean isCanceled;
+
+		private Request(Task task, Callback callback) {
+			this.task = task;
+			this.callback = callback;
+		}
+
+		/**
+		 * Cancels the request, the callback won't be called. The thumbnail
+		 * is no longer loaded if no other request or prefetch needs it.
+		 */
+		public void cancel() {
+			isCanceled = true;
+			ThumbnailLoader.this.cancel(this);
+		}
+
+		public boolean isCanceled() {
+			return isCanceled;
+		}
+	}
+
+	private final class Task implements Runnable, Comparable<Task> {
+		final String key;
+		final Entry entry;
+		final ThumbSize size;
+		final ArrayList<Request> requests = new ArrayList<Request>(1);
+
+		boolean isVisible;
+		boolean isPrefetch;
+		long sequence;
+		boolean isStarted;
+
+		Task(String key, Entry entry, ThumbSize size) {
+			this.key = key;
+			this.entry = entry;
+			this.size = size;
+		}
+
+		public int compareTo(Task another) {
+			if (isVisible != another.isVisible) {
+				return isVisible ? -1 : 1;
+			}
+			// 后请求的先加载 // The latest request first
+			return sequence > another.sequence ? -1
+					: (sequence == another.sequence ? 0 : 1);
+		}
+
+		public void run() {
+			synchronized (tasks) {
+				if (tasks.get(key) != this) {
+					return;
+				}
+				isStarted = true;
+			}
+
+			byte[] data = null;
+			VDiskException error = null;
+			boolean isLoaded = false;
+			try {
+				data = api.getThumbnailBytes(entry, size);
+				isLoaded = true;
+			} catch (VDiskException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new VDiskException(e);
+			} finally {
+				if (!isLoaded && error == null) {
+					// 其他错误，如Error // Failed with something else, e.g. an
+					// Error
+					error = new VDiskException("Loading the thumbnail failed.");
+				}
+				// 出错时也要移除任务，否则同一缩略图不会再加载 // Remove the task
+				// whatever happened, or the thumbnail is never loaded again
+				ArrayList<Request> toNotify;
+				synchronized (tasks) {
+					if (tasks.get(key) == this) {
+						tasks.remove(key);
+					}
+					toNotify = new ArrayList<Request>(requests);
+				}
+				notifyRequests(toNotify, data, error);
+			}
+		}
+
+		/**
+		 * Calls the callbacks of the requests which haven't been canceled. A
+		 * callback which throws doesn't keep the others from being called.
+		 */
+		private void notifyRequests(List<Request> toNotify, byte[] data,
+				VDiskException error) {
+			for (Request request : toNotify) {
+				if (request.isCanceled) {
+					continue;
+				}
+				try {
+					if (error != null) {
+						request.callback.onThumbnailFailed(entry, size, error);
+					} else {
+						request.callback.onThumbnailLoaded(entry, size, data);
+					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, "callback failed for " + key, e);
+				}
+			}
+		}
+	}
+
+	private final VDiskAPI<?> api;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The tasks queued or running, by the key of the thumbnail.
+	 */
+	private final HashMap<String, Task> tasks = new HashMap<String, Task>();
+	private long sequence;
+
+	public ThumbnailLoader(VDiskAPI<?> api) {
+		this.api = api;
+		// 留一个连接给其他下载 // Leave a pooled connection to other downloads
+		int threads = Math.max(1, Math.min(VDiskAPI.THUMBNAIL_LOADER_THREADS,
+				AbstractSession.MAX_DOWNLOAD_CONNECTIONS - 1));
+		executor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Loads the thumbnail of a visible entry, before any queued prefetch and
+	 * before the visible thumbnails requested earlier.
+	 *
+	 * @param entry
+	 *            the entry, with its path and rev.
+	 * @param size
+	 * @param callback
+	 * @return the request, which can be canceled.
+	 */
+	public Request load(Entry entry, ThumbSize size, Callback callback) {
+		synchronized (tasks) {
+			Task task = obtain(entry, size, true);
+			Request request = new Request(task, callback);
+			task.requests.add(request);
+			return request;
+		}
+	}
+
+	/**
+	 * Prefetches the thumbnails of the entries, e.g. of the next viewport,
+	 * after the visible thumbnails. The entries at the start of the list are
+	 * loaded first. The prefetched thumbnails go into the
+	 * {@link ThumbnailCache}, so prefetching only makes sense with a cache
+	 * set on the api.
+	 */
+	public void prefetch(List<Entry> entries, ThumbSize size) {
+		synchronized (tasks) {
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				obtain(entries.get(i), size, false).isPrefetch = true;
+			}
+		}
+	}
+
+	/**
+	 * Drops the queued prefetches no request is waiting for, e.g. when the
+	 * user scrolls the other way.
+	 */
+	public void cancelPrefetch() {
+		synchronized (tasks) {
+			Iterator<Task> iterator = tasks.values().iterator();
+			while (iterator.hasNext()) {
+				Task task = iterator.next();
+				task.isPrefetch = false;
+				if (!task.isStarted && task.requests.isEmpty()) {
+					executor.remove(task);
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancels all the requests and prefetches.
+	 */
+	public void cancelAll() {
+		synchronized (tasks) {
+			for (Task task : tasks.values()) {
+				for (Request request : task.requests) {
+					request.isCanceled = true;
+				}
+				if (!task.isStarted) {
+					executor.remove(task);
+				}
+			}
+			tasks.clear();
+		}
+	}
+
+	/**
+	 * Cancels everything and stops the loader threads.
+	 */
+	public void shutdown() {
+		cancelAll();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns how many thumbnails are queued or loading.
+	 */
+	public int getPendingCount() {
+		synchronized (tasks) {
+			return tasks.size();
+		}
+	}
+
+	/**
+	 * Returns the task of the thumbnail, queued with the latest sequence.
+	 * Must be called with the lock of tasks held.
+	 */
+	private Task obtain(Entry entry, ThumbSize size, boolean isVisible) {
+		String key = ThumbnailCache.key(entry.path, size);
+		Task task = tasks.get(key);
+		if (task == null) {
+			task = new Task(key, entry, size);
+			task.isVisible = isVisible;
+			task.sequence = ++sequence;
+			tasks.put(key, task);
+			executor.execute(task);
+		} else if (!task.isStarted && executor.remove(task)) {
+			// 重新入队以更新优先级 // Queue it again to update its priority
+			task.isVisible |= isVisible;
+			task.sequence = ++sequence;
+			executor.execute(task);
+		}
+		return task;
+	}
+
+	private void cancel(Request request) {
+		synchronized (tasks) {
+			Task task = request.task;
+			task.requests.remove(request);
+			if (task.requests.isEmpty() && !task.isPrefetch
+					&& !task.isStarted && tasks.get(task.key) == task) {
+				executor.remove(task);
+				tasks.remove(task.key);
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.vdisk.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import android.util.Log;
+
+/**
+ * 监视上传请求写入数据的情况，超过{@link VDiskAPI#UPLOAD_RESPONSE_TIMEOUT_S}
+ * 秒没有写出任何数据时中断请求。所有上传请求共用一个监视线程，上传线程直接向socket写入数据。
+ *
+ * Watches the upload requests, and aborts a request if no data could be
+ * written for {@link VDiskAPI#UPLOAD_RESPONSE_TIMEOUT_S} seconds. One thread
+ * watches all the uploads, so the upload threads write to the socket directly.
+ */
+public class UploadWatchdog extends Thread {
+
+	private static final String TAG = "UploadWatchdog";
+
+	private static final int CHECK_INTERVAL_MS = 1000;
+
+	private static final Set<Watch> watches = new HashSet<Watch>();
+
+	private static UploadWatchdog thread = null;
+
+	private UploadWatchdog() {
+		super(TAG);
+		setDaemon(true);
+	}
+
+	/**
+	 * Wraps the entity of the request, so that the request is watched while
+	 * its entity is being written.
+	 *
+	 * @param request
+	 *            the upload request.
+	 * @return the watch of the request.
+	 */
+	public static Watch watch(HttpUriRequest request) {
+		Watch watch = new Watch(request);
+
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = enclosingRequest.getEntity();
+			if (entity != null) {
+				enclosingRequest.setEntity(new WatchedEntity(entity, watch));
+			}
+		}
+
+		return watch;
+	}
+
+	private static synchronized void start(Watch watch) {
+		watches.add(watch);
+		if (thread == null) {
+			thread = new UploadWatchdog();
+			thread.start();
+		}
+	}
+
+	private static synchronized void stop(Watch watch) {
+		watches.remove(watch);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Thread.sleep(CHECK_INTERVAL_MS);
+
+				Watch[] current;
+				synchronized (UploadWatchdog.class) {
+					if (watches.isEmpty()) {
+						thread = null;
+						return;
+					}
+					current = watches.toArray(new Watch[watches.size()]);
+				}
+
+				long timeoutMs = VDiskAPI.UPLOAD_RESPONSE_TIMEOUT_S * 1000L;
+				long now = System.nanoTime() / 1000000;
+				for (Watch watch : current) {
+					if (now - watch.lastWrite >= timeoutMs) {
+						Log.d(TAG, "Long time no response, abort the upload.");
+						stop(watch);
+						watch.timedOut = true;
+						watch.request.abort();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			synchronized (UploadWatchdog.class) {
+				thread = null;
+			}
+		}
+	}
+
+	/**
+	 * The watch state of one upload request.
+	 */
+	public static final class Watch {
+		private final HttpUriRequest request;
+		private volatile long lastWrite;
+		private volatile boolean timedOut;
+
+		private Watch(HttpUriRequest request) {
+			this.request = request;
+		}
+
+		private void touch() {
+			lastWrite = System.nanoTime() / 1000000;
+		}
+
+		/**
+		 * Returns whether the request was aborted because no data could be
+		 * written for a long time.
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+	}
+
+	private static class WatchedEntity extends HttpEntityWrapper {
+		private final Watch watch;
+
+		public WatchedEntity(HttpEntity wrapped, Watch watch) {
+			super(wrapped);
+			this.watch = watch;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			watch.touch();
+			start(watch);
+			try {
+				wrappedEntity.writeTo(new WatchedOutputStream(out, watch));
+			} finally {
+				// 数据写完后由socket超时控制等待响应的时间 // After the data is
+				// written, waiting for the response is limited by the socket
+				// timeout.
+				stop(watch);
+			}
+		}
+	}
+
+	private static class WatchedOutputStream extends FilterOutputStream {
+		private final Watch watch;
+
+		public WatchedOutputStream(OutputStream out, Watch watch) {
+			super(out);
+			this.watch = watch;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			watch.touch();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			watch.touch();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+			watch.touch();
+		}
+	}
+}
@@ -1,21 +1,37 @@
 package com.vdisk.net;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.SyncFailedException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -36,6 +52,7 @@ import com.vdisk.net.ProgressListener.ProgressHttpEntity;
 import com.vdisk.net.RESTUtility.RequestMethod;
 import com.vdisk.net.exception.VDiskDownloadFileExistException;
 import com.vdisk.net.exception.VDiskException;
+import com.vdisk.net.exception.VDiskFileNotFoundException;
 import com.vdisk.net.exception.VDiskFileSizeException;
 import com.vdisk.net.exception.VDiskIOException;
 import com.vdisk.net.exception.VDiskLocalStorageFullException;
@@ -51,9 +68,13 @@ import com.vdisk.net.jsonextract.JsonThing;
 import com.vdisk.net.session.AppKeyPair;
 import com.vdisk.net.session.Session;
 import com.vdisk.net.session.WeiboAccessToken;
+import com.vdisk.utils.BufferPool;
 import com.vdisk.utils.Digest;
+import com.vdisk.utils.HttpDate;
+import com.vdisk.utils.Digest.FileDigest;
 import com.vdisk.utils.Logger;
 import com.vdisk.utils.Signature;
+import com.vdisk.utils.SingleFlight;
 
 /**
  * Location of the VDisk API functions.
@@ -86,19 +107,238 @@ public class VDiskAPI<SESS_T extends Session> {
 
 	public static int UPLOAD_RESPONSE_TIMEOUT_S = 60; // 1 minute
 
+	/**
+	 * How many segments of a large file are uploaded at the same time.
+	 */
+	public static int UPLOAD_SEGMENT_THREADS = 3;
+
+	/**
+	 * Whether the md5 of a segment is computed from the bytes sent while it
+	 * is uploaded, instead of computing all the md5s along with the sha1
+	 * before the upload starts. Either way the file is read twice: the sha1
+	 * of the whole file is needed by the upload init request before any
+	 * segment is sent, so it can't be computed while uploading. Pipelining
+	 * moves the md5 work off the critical path before the first segment is
+	 * sent, at the cost of md5s computed for segments whose upload fails
+	 * being recomputed on the retry. The handler still gets both phases, in
+	 * this order: ComplexUploadStatusCreateFileSHA1,
+	 * ComplexUploadStatusInitialize, then ComplexUploadStatusCreateFileMD5s
+	 * right before the first segment starts uploading, and
+	 * ComplexUploadStatusUploading as the segments are sent.
+	 */
+	public static boolean UPLOAD_PIPELINE_MD5 = false;
+
 	public static final String DOWNLOAD_TEMP_FILE_SUFFIX = ".vdisktemp";
 
+	/**
+	 * How many ranges of a file are downloaded at the same time by
+	 * {@link #getFileParallelRequest}.
+	 */
+	public static int DOWNLOAD_THREADS = 3;
+
+	/**
+	 * The size of each range downloaded by {@link #getFileParallelRequest}, in
+	 * bytes.
+	 */
+	public static long DOWNLOAD_CHUNK_SIZE = 4 * 1024 * 1024; // 4MB
+
+	/**
+	 * When a downloaded file is synced to disk.
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Sync every chunk recorded in the download journal, and the whole
+		 * file when the download completes.
+		 */
+		ALWAYS,
+
+		/**
+		 * Sync every {@link VDiskAPI#DOWNLOAD_SYNC_BATCH_CHUNKS} chunks or
+		 * {@link VDiskAPI#DOWNLOAD_SYNC_INTERVAL} milliseconds, and when the
+		 * download completes or is interrupted. The written chunks are
+		 * recorded in the download journal after each sync, so a killed
+		 * download loses at most one batch.
+		 */
+		ON_COMPLETION,
+
+		/**
+		 * Never sync, leave it to the system. Nothing is recorded in the
+		 * download journal, since chunks which are not synced may not be on
+		 * disk yet, so an interrupted download starts over.
+		 */
+		NEVER;
+	}
+
+	/**
+	 * When a downloaded file is synced to disk by
+	 * {@link VDiskInputStream#copyStreamToOutput}.
+	 */
+	public static SyncPolicy DOWNLOAD_SYNC_POLICY = SyncPolicy.ON_COMPLETION;
+
+	/**
+	 * How many written chunks are synced and recorded together with
+	 * {@link SyncPolicy#ON_COMPLETION}.
+	 */
+	public static int DOWNLOAD_SYNC_BATCH_CHUNKS = 4;
+
+	/**
+	 * How long written chunks wait at most before they're synced and recorded
+	 * with {@link SyncPolicy#ON_COMPLETION}, in milliseconds.
+	 */
+	public static long DOWNLOAD_SYNC_INTERVAL = 10 * 1000;
+
+	private static final int SMALL_BUFFER_SIZE = 8 * 1024;
+	private static final int LARGE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The buffers shared by all downloads.
+	 */
+	private static final BufferPool SMALL_BUFFER_POOL = new BufferPool(
+			SMALL_BUFFER_SIZE, 16);
+	private static final BufferPool LARGE_BUFFER_POOL = new BufferPool(
+			LARGE_BUFFER_SIZE, 8);
+
+	/**
+	 * How many bytes are read between two checks of the progress interval.
+	 */
+	private static final long PROGRESS_SAMPLE_BYTES = 64 * 1024;
+
+	/**
+	 * Whether the md5 (or sha1) of a downloaded file is computed while
+	 * downloading and checked against its metadata.
+	 */
+	public static boolean DOWNLOAD_VERIFY = false;
+
 	private static String SINA_STORAGE_SERVICE_HOST = "up.sinastorage.com";
 
 	private static final long UPLOAD_DEFAULT_SECTION_SIZE = 4 * 1024 * 1024; // 4MB
 
+	/**
+	 * How many folders are kept in the metadata cache of a new
+	 * {@link VDiskAPI}, 0 to disable the cache.
+	 */
+	public static int METADATA_CACHE_SIZE = 100;
+
+	/**
+	 * Whether the contents of a folder are kept in a {@link CompactEntryList}
+	 * instead of an ArrayList, to save memory with big folders.
+	 */
+	public static boolean COMPACT_LISTINGS = false;
+
+	/**
+	 * How many metadata requests {@link #metadata(Collection, boolean)} runs
+	 * at the same time. The batches of a {@link VDiskAPI} share its threads,
+	 * which are created the first time a batch runs, as many as this or
+	 * {@link #THUMBNAIL_LOADER_THREADS}, whichever is more.
+	 */
+	public static int METADATA_BATCH_THREADS = 4;
+
+	/**
+	 * Whether identical idempotent requests (GETs, metadata and thumbnail
+	 * lookups) which are in flight at the same time are sent only once, with
+	 * the one result shared by every caller. A shared result is the same
+	 * object for every caller, so only turn it on if the callers don't modify
+	 * the returned entries.
+	 */
+	public static boolean COALESCE_REQUESTS = false;
+
+	/**
+	 * How many thumbnails a {@link ThumbnailLoader} or
+	 * {@link #getPhotoThumbnails} loads at the same time. A ThumbnailLoader
+	 * leaves one of the
+	 * {@link com.vdisk.net.session.AbstractSession#MAX_DOWNLOAD_CONNECTIONS}
+	 * free, so that a visible thumbnail doesn't wait for a connection.
+	 */
+	public static int THUMBNAIL_LOADER_THREADS = 4;
+
+	/**
+	 * The HTTP stack which sends the requests of a session.
+	 */
+	public enum TransportType {
+		/**
+		 * The Apache HttpClient of {@link Session#getHttpClient()}, with its
+		 * own connection pool.
+		 */
+		HTTP_CLIENT,
+
+		/**
+		 * The platform's HttpURLConnection, which shares the platform's
+		 * kept-alive connections.
+		 */
+		URL_CONNECTION;
+	}
+
+	/**
+	 * The transport a session uses unless one is set on it, see
+	 * {@link com.vdisk.net.session.AbstractSession#setHttpTransport}. A
+	 * session reads it once, when it sends its first request, so changing it
+	 * only affects the sessions which haven't sent any request yet. Sessions
+	 * which don't extend AbstractSession always use their HttpClient.
+	 */
+	public static TransportType HTTP_TRANSPORT = TransportType.HTTP_CLIENT;
+
 	protected final SESS_T session;
 
+	private MetadataCache metadataCache;
+
+	private ThumbnailCache thumbnailCache;
+
+	/**
+	 * Coalesces the metadata lookups of the same path running at the same
+	 * time.
+	 */
+	private final SingleFlight<String, Entry> metadataFlights = new SingleFlight<String, Entry>();
+
+	/**
+	 * Coalesces the thumbnail lookups of the same path and size running at the
+	 * same time.
+	 */
+	private final SingleFlight<String, VDiskFileInfo> thumbnailInfoFlights = new SingleFlight<String, VDiskFileInfo>();
+
+	/**
+	 * The threads shared by the batches, created when the first batch runs.
+	 */
+	private ThreadPoolExecutor batchExecutor;
+
 	public VDiskAPI(SESS_T session) {
 		if (session == null) {
 			throw new IllegalArgumentException("Session must not be null.");
 		}
 		this.session = session;
+
+		if (METADATA_CACHE_SIZE > 0) {
+			metadataCache = new MetadataCache(METADATA_CACHE_SIZE);
+		}
+	}
+
+	/**
+	 * Sets the cache used by {@link #metadata}, or null to disable it.
+	 */
+	public void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	/**
+	 * Returns the cache used by {@link #metadata}, or null if it's disabled.
+	 */
+	public MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Sets the cache used by {@link #getThumbnail} and
+	 * {@link #getThumbnailBytes}, or null to disable it. Default is null.
+	 */
+	public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+		this.thumbnailCache = thumbnailCache;
+	}
+
+	/**
+	 * Returns the cache used by {@link #getThumbnail} and
+	 * {@link #getThumbnailBytes}, or null if it's disabled.
+	 */
+	public ThumbnailCache getThumbnailCache() {
+		return thumbnailCache;
 	}
 
 	/**
@@ -181,6 +421,8 @@ public class VDiskAPI<SESS_T extends Session> {
 		public String sha1;// sha1 of file.
 		public int point;// identify which segment will to be uploaded，start
 							// from zero.
+		public BitSet uploadedSegments;// one bit for each uploaded segment.
+		public String[] segmentMD5s;// md5 of each segment.
 		public long expireTime;// upload key will expire in 2 days.
 		public long segmentLength; // the length of each upload segment.
 		public int segmentNum;
@@ -244,6 +486,140 @@ public class VDiskAPI<SESS_T extends Session> {
 			this.id = Digest.md5String(srcPath + desPath);
 		}
 
+		/**
+		 * Returns whether the segment has already been uploaded.
+		 * 
+		 * @param index
+		 *            the index of the segment, start from zero.
+		 */
+		public boolean isSegmentUploaded(int index) {
+			if (uploadedSegments == null) {
+				// Saved before the bitmap existed, only the point is known.
+				return index < point;
+			}
+			return uploadedSegments.get(index);
+		}
+
+		/**
+		 * Marks the segment as uploaded. Segments can be marked in any order,
+		 * {@code point} is moved to the first segment which isn't uploaded
+		 * yet.
+		 * 
+		 * @param index
+		 *            the index of the segment, start from zero.
+		 */
+		public void markSegmentUploaded(int index) {
+			if (uploadedSegments == null) {
+				uploadedSegments = new BitSet(segmentNum);
+				uploadedSegments.set(0, point);
+			}
+			uploadedSegments.set(index);
+			point = uploadedSegments.nextClearBit(0);
+		}
+
+		/**
+		 * Returns the indexes of the segments which haven't been uploaded, in
+		 * ascending order.
+		 */
+		public int[] getMissingSegments() {
+			int[] missing = new int[segmentNum - getUploadedCount()];
+			int n = 0;
+			for (int i = 0; i < segmentNum; i++) {
+				if (!isSegmentUploaded(i)) {
+					missing[n++] = i;
+				}
+			}
+			return missing;
+		}
+
+		/**
+		 * Returns how many segments have been uploaded.
+		 */
+		public int getUploadedCount() {
+			if (uploadedSegments == null) {
+				return Math.min(point, segmentNum);
+			}
+			return uploadedSegments.cardinality();
+		}
+
+		/**
+		 * Returns how many bytes of the file have been uploaded.
+		 * 
+		 * @param length
+		 *            the length of the local file.
+		 */
+		public long getUploadedBytes(long length) {
+			long bytes = 0;
+			for (int i = 0; i < segmentNum; i++) {
+				if (isSegmentUploaded(i)) {
+					bytes += getSegmentLength(i, length);
+				}
+			}
+			return bytes;
+		}
+
+		/**
+		 * Returns the length of the segment.
+		 * 
+		 * @param index
+		 *            the index of the segment, start from zero.
+		 * @param length
+		 *            the length of the local file.
+		 */
+		public long getSegmentLength(int index, long length) {
+			return Math.min(segmentLength, length - index * segmentLength);
+		}
+
+		/**
+		 * Sets the md5s of all segments.
+		 * 
+		 * @param md5s
+		 *            all segment's md5 splited by ",".
+		 */
+		public void setMD5s(String md5s) {
+			this.md5s = md5s;
+			this.segmentMD5s = md5s.split(",");
+		}
+
+		/**
+		 * Sets the md5 of one segment.
+		 * 
+		 * @param index
+		 *            the index of the segment, start from zero.
+		 * @param md5
+		 *            the md5 of the segment.
+		 */
+		public void setSegmentMD5(int index, String md5) {
+			if (segmentMD5s == null) {
+				segmentMD5s = new String[segmentNum];
+			}
+			segmentMD5s[index] = md5;
+			md5s = null;
+		}
+
+		/**
+		 * Returns all segment's md5 splited by ",", or null if some segment's
+		 * md5 is unknown.
+		 */
+		public String getMD5List() {
+			if (md5s != null || segmentMD5s == null) {
+				return md5s;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < segmentMD5s.length; i++) {
+				if (segmentMD5s[i] == null) {
+					return null;
+				}
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(segmentMD5s[i]);
+			}
+			md5s = sb.toString();
+			return md5s;
+		}
+
 	}
 
 	/**
@@ -271,7 +647,8 @@ public class VDiskAPI<SESS_T extends Session> {
 
 		/**
 		 * Last modified date, in "EEE, dd MMM yyyy kk:mm:ss ZZZZZ" form (see
-		 * {@code RESTUtility#parseDate(String)} for parsing this value.
+		 * {@link #getModifiedTime()} or {@code RESTUtility#parseDate(String)}
+		 * for parsing this value.
 		 */
 		public String modified;
 
@@ -378,43 +755,214 @@ public class VDiskAPI<SESS_T extends Session> {
 		 */
 		@SuppressWarnings("unchecked")
 		public Entry(Map<String, Object> map) {
-			bytes = getFromMapAsLong(map, "bytes");
-			hash = (String) map.get("hash");
-			icon = getFromMapAsString(map, "icon");
-			isDir = getFromMapAsBoolean(map, "is_dir");
-			modified = (String) map.get("modified");
-			clientMtime = (String) map.get("client_mtime");
-			path = (String) map.get("path");
-			root = (String) map.get("root");
-			size = (String) map.get("size");
-			mimeType = (String) map.get("mime_type");
-			rev = getFromMapAsString(map, "rev");
-			revision = getFromMapAsString(map, "revision");
-			md5 = (String) map.get("md5");
-			sha1 = (String) map.get("sha1");
-			thumbExists = getFromMapAsBoolean(map, "thumb_exists");
-			isDeleted = getFromMapAsBoolean(map, "is_deleted");
-			thumb = (String) map.get("thumb");
-
-			Object json_contents = map.get("contents");
-			if (json_contents != null && json_contents instanceof JSONArray) {
-				contents = new ArrayList<Entry>();
-				Object entry;
-				Iterator<?> it = ((JSONArray) json_contents).iterator();
-				while (it.hasNext()) {
-					entry = it.next();
+			bytes = asLong(map.get("bytes"));
+			hash = asString(map.get("hash"));
+			icon = asString(map.get("icon"));
+			isDir = asBoolean(map.get("is_dir"));
+			modified = asString(map.get("modified"));
+			clientMtime = asString(map.get("client_mtime"));
+			path = asString(map.get("path"));
+			root = asString(map.get("root"));
+			size = asString(map.get("size"));
+			mimeType = asString(map.get("mime_type"));
+			rev = asString(map.get("rev"));
+			revision = asString(map.get("revision"));
+			md5 = asString(map.get("md5"));
+			sha1 = asString(map.get("sha1"));
+			thumbExists = asBoolean(map.get("thumb_exists"));
+			isDeleted = asBoolean(map.get("is_deleted"));
+			thumb = asString(map.get("thumb"));
+
+			Object value = map.get("contents");
+			if (value instanceof JSONArray) {
+				List<?> list = (JSONArray) value;
+				contents = newContentsList(list.size());
+				for (int i = 0; i < list.size(); i++) {
+					Object entry = list.get(i);
 					if (entry instanceof Map) {
 						contents.add(new Entry((Map<String, Object>) entry));
 					}
 				}
-			} else {
-				contents = null;
 			}
 		}
 
 		public Entry() {
 		}
 
+		/**
+		 * Returns a copy of this entry. The contents list and the entries in
+		 * it are copied too, so changing the copy doesn't change this entry.
+		 */
+		public Entry copy() {
+			Entry entry = new Entry();
+			entry.bytes = bytes;
+			entry.hash = hash;
+			entry.icon = icon;
+			entry.isDir = isDir;
+			entry.modified = modified;
+			entry.clientMtime = clientMtime;
+			entry.path = path;
+			entry.root = root;
+			entry.size = size;
+			entry.mimeType = mimeType;
+			entry.md5 = md5;
+			entry.sha1 = sha1;
+			entry.revision = revision;
+			entry.thumb = thumb;
+			entry.rev = rev;
+			entry.thumbExists = thumbExists;
+			entry.isDeleted = isDeleted;
+			if (contents != null) {
+				entry.contents = newContentsList(contents.size());
+				for (Entry child : contents) {
+					entry.contents.add(child.copy());
+				}
+				if (entry.contents instanceof CompactEntryList) {
+					((CompactEntryList) entry.contents).trimToSize();
+				}
+			}
+			return entry;
+		}
+
+		/**
+		 * Returns a new list for the contents of a folder, a
+		 * {@link CompactEntryList} if {@link VDiskAPI#COMPACT_LISTINGS} is
+		 * set.
+		 */
+		static List<Entry> newContentsList(int initialCapacity) {
+			if (COMPACT_LISTINGS) {
+				return new CompactEntryList(initialCapacity);
+			}
+			return new ArrayList<Entry>(initialCapacity);
+		}
+
+		/**
+		 * The index of each JSON field name, so that a field is found by one
+		 * hash lookup instead of comparing its name with every known name.
+		 */
+		private static final HashMap<String, Integer> FIELD_INDEXES = new HashMap<String, Integer>();
+		static {
+			String[] names = { "bytes", "path", "is_dir", "hash", "rev",
+					"revision", "modified", "client_mtime", "size", "md5",
+					"sha1", "mime_type", "icon", "root", "thumb",
+					"thumb_exists", "is_deleted" };
+			for (int i = 0; i < names.length; i++) {
+				FIELD_INDEXES.put(names[i], i);
+			}
+		}
+
+		/**
+		 * Sets the field by its JSON name. Numbers are read from the parsed
+		 * value directly, unknown names and null values are ignored.
+		 */
+		void setField(String name, Object value) {
+			if (value == null || name == null) {
+				return;
+			}
+			Integer index = FIELD_INDEXES.get(name);
+			if (index == null) {
+				return;
+			}
+
+			switch (index) {
+			case 0: // bytes
+				bytes = asLong(value);
+				break;
+			case 1: // path
+				path = asString(value);
+				break;
+			case 2: // is_dir
+				isDir = asBoolean(value);
+				break;
+			case 3: // hash
+				hash = asString(value);
+				break;
+			case 4: // rev
+				rev = asString(value);
+				break;
+			case 5: // revision
+				revision = asString(value);
+				break;
+			case 6: // modified
+				modified = asString(value);
+				break;
+			case 7: // client_mtime
+				clientMtime = asString(value);
+				break;
+			case 8: // size
+				size = asString(value);
+				break;
+			case 9: // md5
+				md5 = asString(value);
+				break;
+			case 10: // sha1
+				sha1 = asString(value);
+				break;
+			case 11: // mime_type
+				mimeType = asString(value);
+				break;
+			case 12: // icon
+				icon = asString(value);
+				break;
+			case 13: // root
+				root = asString(value);
+				break;
+			case 14: // thumb
+				thumb = asString(value);
+				break;
+			case 15: // thumb_exists
+				thumbExists = asBoolean(value);
+				break;
+			case 16: // is_deleted
+				isDeleted = asBoolean(value);
+				break;
+			}
+		}
+
+		/**
+		 * The {@link #modified} and {@link #clientMtime} strings last parsed,
+		 * and their times.
+		 */
+		private volatile String parsedModified;
+		private long modifiedTime;
+		private volatile String parsedClientMtime;
+		private long clientMtimeTime;
+
+		/**
+		 * Returns {@link #modified} in milliseconds since the epoch, or -1 if
+		 * it's unknown. It's parsed once, and again only if the field changes.
+		 */
+		public long getModifiedTime() {
+			String date = modified;
+			if (date == null) {
+				return -1;
+			}
+			if (date != parsedModified) {
+				long time = HttpDate.parse(date);
+				modifiedTime = time == HttpDate.INVALID ? -1 : time;
+				parsedModified = date;
+			}
+			return modifiedTime;
+		}
+
+		/**
+		 * Returns {@link #clientMtime} in milliseconds since the epoch, or -1
+		 * if it's unknown. It's parsed once, and again only if the field
+		 * changes.
+		 */
+		public long getClientMtime() {
+			String date = clientMtime;
+			if (date == null) {
+				return -1;
+			}
+			if (date != parsedClientMtime) {
+				long time = HttpDate.parse(date);
+				clientMtimeTime = time == HttpDate.INVALID ? -1 : time;
+				parsedClientMtime = date;
+			}
+			return clientMtimeTime;
+		}
+
 		/**
 		 * Returns the file name if this is a file (the part after the last
 		 * slash in the path).
@@ -443,6 +991,50 @@ public class VDiskAPI<SESS_T extends Session> {
 		};
 	}
 
+	/**
+	 * Flushes the output stream and syncs it to disk if it writes to a file,
+	 * unless the policy is {@link SyncPolicy#NEVER}.
+	 */
+	/**
+	 * Returns whether the chunks written but not recorded in the download
+	 * journal should be synced and recorded now.
+	 *
+	 * @param syncPolicy
+	 *            when the file is synced.
+	 * @param unrecordedChunks
+	 *            how many chunks are written but not recorded.
+	 * @param lastSync
+	 *            when the file was last synced, in milliseconds.
+	 */
+	static boolean isSyncDue(SyncPolicy syncPolicy, int unrecordedChunks,
+			long lastSync) {
+		if (unrecordedChunks <= 0) {
+			return false;
+		}
+		switch (syncPolicy) {
+		case ALWAYS:
+			return true;
+		case ON_COMPLETION:
+			long elapsed = System.currentTimeMillis() - lastSync;
+			return unrecordedChunks >= DOWNLOAD_SYNC_BATCH_CHUNKS
+					|| elapsed >= DOWNLOAD_SYNC_INTERVAL;
+		default:
+			return false;
+		}
+	}
+
+	private static void syncOutput(OutputStream os, SyncPolicy syncPolicy)
+			throws IOException {
+		os.flush();
+		try {
+			if (syncPolicy != SyncPolicy.NEVER
+					&& os instanceof FileOutputStream) {
+				((FileOutputStream) os).getFD().sync();
+			}
+		} catch (SyncFailedException e) {
+		}
+	}
+
 	/**
 	 * Contains info describing a downloaded file.
 	 */
@@ -629,6 +1221,7 @@ public class VDiskAPI<SESS_T extends Session> {
 	public static class VDiskInputStream extends FilterInputStream {
 		private final HttpUriRequest request;
 		private final VDiskFileInfo info;
+		private DownloadJournal journal;
 
 		public VDiskInputStream(HttpUriRequest request, HttpResponse response,
 				Entry metadata, String location) throws VDiskException {
@@ -670,6 +1263,14 @@ public class VDiskAPI<SESS_T extends Session> {
 			return info;
 		}
 
+		/**
+		 * Sets the journal of the download temp file, which records the
+		 * chunks written by {@link #copyStreamToOutput}.
+		 */
+		void setJournal(DownloadJournal journal) {
+			this.journal = journal;
+		}
+
 		/**
 		 * Copies from a {@link VDiskInputStream} to an {@link OutputStream},
 		 * optionally providing updates via a {@link ProgressListener}. You
@@ -699,16 +1300,29 @@ public class VDiskAPI<SESS_T extends Session> {
 				ProgressListener listener, boolean isThumnail)
 				throws VDiskIOException, VDiskPartialFileException,
 				VDiskLocalStorageFullException {
-			BufferedOutputStream bos = null;
-			long totalRead = getRange(targetFile);
+			long totalRead = journal != null ? journal.getContiguousBytes()
+					: getRange(targetFile);
+			// 下一个要记录到日志中的分块 // The next chunk to record in the journal
+			int chunk = journal != null ? journal.getChunkAt(totalRead) : 0;
+			// 已写完但还没记录到日志的分块 // The chunks written but not recorded
+			// in the journal yet
+			int unrecordedChunk = chunk;
+			long lastSync = System.currentTimeMillis();
 			long lastListened = 0;
+			long nextSample = 0;
 			long length = isThumnail ? info.getContentLength() : info
 					.getFileSize();
+			SyncPolicy syncPolicy = DOWNLOAD_SYNC_POLICY;
 
-			try {
-				bos = new BufferedOutputStream(os);
+			// 小文件(如缩略图)使用小缓冲区 // Use a small buffer for small files,
+			// e.g. thumbnails
+			BufferPool pool = length >= 0
+					&& length - totalRead <= LARGE_BUFFER_SIZE ? SMALL_BUFFER_POOL
+					: LARGE_BUFFER_POOL;
+			byte[] buffer = pool.acquire();
+			boolean completed = false;
 
-				byte[] buffer = new byte[4096];
+			try {
 				int read;
 				while (true) {
 					read = read(buffer);
@@ -717,17 +1331,44 @@ public class VDiskAPI<SESS_T extends Session> {
 							// We've reached the end of the file, but it's
 							// unexpected.
 							targetFile.delete();
+							if (journal != null) {
+								journal.delete();
+							}
 							throw new VDiskPartialFileException(totalRead);
 						}
 						// TODO check for partial success, if possible
 						break;
 					}
 
-					bos.write(buffer, 0, read);
+					if (journal != null) {
+						journal.update(totalRead, buffer, 0, read);
+					}
+
+					os.write(buffer, 0, read);
 
 					totalRead += read;
 
-					if (listener != null) {
+					if (journal != null) {
+						while (chunk < journal.getChunkNum()
+								&& totalRead >= journal.getChunkEnd(chunk)) {
+							chunk++;
+						}
+						if (isSyncDue(syncPolicy, chunk - unrecordedChunk,
+								lastSync)) {
+							// 分块写完后同步到磁盘并记录 // Sync the chunks to
+							// disk and record them after they are written
+							syncOutput(os, syncPolicy);
+							lastSync = System.currentTimeMillis();
+							while (unrecordedChunk < chunk) {
+								journal.markChunkVerified(unrecordedChunk++);
+							}
+						}
+					}
+
+					// 每读取一定字节才检查一次时间 // Only check the time after
+					// some bytes are read
+					if (listener != null && totalRead >= nextSample) {
+						nextSample = totalRead + PROGRESS_SAMPLE_BYTES;
 						long now = System.currentTimeMillis();
 						if (now - lastListened > listener.progressInterval()) {
 							lastListened = now;
@@ -736,26 +1377,22 @@ public class VDiskAPI<SESS_T extends Session> {
 					}
 				}
 
-				bos.flush();
-				os.flush();
 				// Make sure it's flushed out to disk
-				try {
-					if (os instanceof FileOutputStream) {
-						((FileOutputStream) os).getFD().sync();
+				syncOutput(os, syncPolicy);
+				completed = true;
+
+				if (journal != null) {
+					if (!journal.verify()) {
+						// 文件内容与服务器上的不一致 // The content doesn't match
+						// the file on the server
+						journal.delete();
+						targetFile.delete();
+						throw new VDiskPartialFileException(0);
 					}
-				} catch (SyncFailedException e) {
+					journal.delete();
 				}
 
-				if (targetFile != null) {
-					String tempName = targetFile.getName();
-					File parent = targetFile.getParentFile();
-					if (tempName.endsWith(VDiskAPI.DOWNLOAD_TEMP_FILE_SUFFIX)) {
-						String filename = tempName.substring(0,
-								tempName.lastIndexOf("."));
-						File newFile = new File(parent, filename);
-						targetFile.renameTo(newFile);
-					}
-				}
+				renameDownloadTempFile(targetFile);
 
 			} catch (IOException e) {
 				String message = e.getMessage();
@@ -774,12 +1411,19 @@ public class VDiskAPI<SESS_T extends Session> {
 					throw new VDiskPartialFileException(totalRead);
 				}
 			} finally {
-				if (bos != null) {
+				if (!completed && journal != null && unrecordedChunk < chunk
+						&& syncPolicy != SyncPolicy.NEVER) {
+					// 下载中断时同步一次，记录已写完的分块 // When the download is
+					// interrupted, sync once and record the written chunks
 					try {
-						bos.close();
+						syncOutput(os, syncPolicy);
+						while (unrecordedChunk < chunk) {
+							journal.markChunkVerified(unrecordedChunk++);
+						}
 					} catch (IOException e) {
 					}
 				}
+				pool.release(buffer);
 				if (os != null) {
 					try {
 						os.close();
@@ -873,11 +1517,14 @@ public class VDiskAPI<SESS_T extends Session> {
 		@Override
 		public Entry upload() throws VDiskException {
 			HttpResponse hresp;
+			UploadWatchdog.Watch watch = UploadWatchdog.watch(request);
 			try {
 				hresp = RESTUtility.execute(session, request,
 						UPLOAD_SO_TIMEOUT_MS);
 			} catch (VDiskIOException e) {
-				if (request.isAborted()) {
+				if (watch.isTimedOut()) {
+					throw new VDiskIOException("Long time no response.");
+				} else if (request.isAborted()) {
 					throw new VDiskPartialFileException(-1);
 				} else {
 					throw e;
@@ -909,10 +1556,13 @@ public class VDiskAPI<SESS_T extends Session> {
 
 		@Override
 		public Entry upload() throws VDiskException {
+			UploadWatchdog.Watch watch = UploadWatchdog.watch(request);
 			try {
 				RESTUtility.execute(session, request, UPLOAD_SO_TIMEOUT_MS);
 			} catch (VDiskIOException e) {
-				if (request.isAborted()) {
+				if (watch.isTimedOut()) {
+					throw new VDiskIOException("Long time no response.");
+				} else if (request.isAborted()) {
 					throw new VDiskPartialFileException(-1);
 				} else {
 					throw e;
@@ -1146,6 +1796,84 @@ public class VDiskAPI<SESS_T extends Session> {
 		return null;
 	}
 
+	/**
+	 * Downloads a file from VDisk over several connections at the same time,
+	 * see {@link #getFileParallelRequest}.
+	 * 
+	 * @param path
+	 *            the VDisk path to the file.
+	 * @param rev
+	 *            the revision (from the file's metadata) of the file to
+	 *            download, or null to get the latest version.
+	 * @param targetFile
+	 *            the temp file to download to, its name ends with
+	 *            {@link #DOWNLOAD_TEMP_FILE_SUFFIX}.
+	 * @param listener
+	 *            an optional {@link ProgressListener} to receive progress
+	 *            updates as the file downloads, or null.
+	 * @return the {@link VDiskFileInfo} for the downloaded file.
+	 * @throws VDiskException
+	 */
+	public VDiskFileInfo getFileParallel(String path, String rev,
+			File targetFile, ProgressListener listener) throws VDiskException {
+		ParallelDownload download = getFileParallelRequest(path, rev,
+				targetFile, listener);
+
+		if (download != null) {
+			return download.download();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a request to download a file from VDisk over several
+	 * connections. The file is split into ranges of
+	 * {@link #DOWNLOAD_CHUNK_SIZE} bytes, {@link #DOWNLOAD_THREADS} ranges are
+	 * downloaded at the same time and written into the preallocated temp
+	 * file. Call {@link ParallelDownload#download()} to execute the request,
+	 * and {@link ParallelDownload#abort()} to cancel it.
+	 * 
+	 * @param path
+	 *            the VDisk path to the file.
+	 * @param rev
+	 *            the revision (from the file's metadata) of the file to
+	 *            download, or null to get the latest version.
+	 * @param targetFile
+	 *            the temp file to download to, its name ends with
+	 *            {@link #DOWNLOAD_TEMP_FILE_SUFFIX}.
+	 * @param listener
+	 *            an optional {@link ProgressListener} to receive progress
+	 *            updates as the file downloads, or null.
+	 * @return the {@link ParallelDownload}, or null if the download url can't
+	 *         be got.
+	 * @throws VDiskDownloadFileExistException
+	 *             if the file has already been downloaded.
+	 * @throws VDiskException
+	 */
+	public ParallelDownload getFileParallelRequest(String path, String rev,
+			File targetFile, ProgressListener listener) throws VDiskException {
+		VDiskFileInfo fileInfo = getVDiskFileInfo(path, rev);
+
+		if (fileInfo != null) {
+			Log.d(TAG, "download location: " + fileInfo.downloadURL);
+
+			String filename = targetFile.getName().replace(
+					DOWNLOAD_TEMP_FILE_SUFFIX, "");
+			File file = new File(targetFile.getParent(), filename);
+
+			if (file.exists() && file.length() == fileInfo.metadata.bytes) {
+				targetFile.delete();
+				DownloadJournal.delete(targetFile);
+				throw new VDiskDownloadFileExistException();
+			}
+
+			return new ParallelDownload(session, fileInfo, targetFile,
+					DOWNLOAD_THREADS, DOWNLOAD_CHUNK_SIZE, listener);
+		}
+
+		return null;
+	}
+
 	/**
 	 * Create the download file dirs by the target path.
 	 * 
@@ -1232,20 +1960,77 @@ public class VDiskAPI<SESS_T extends Session> {
 
 			if (file.exists() && file.length() == metadata.bytes) {
 				targetFile.delete();
+				DownloadJournal.delete(targetFile);
 				throw new VDiskDownloadFileExistException();
 			}
 
+			// 只从日志确认过的位置续传，之后的数据可能没有完整写入 // Only resume
+			// from the bytes verified by the journal, the data after them may
+			// be torn
+			DownloadJournal journal = DownloadJournal.open(targetFile,
+					metadata.md5, metadata.bytes, DOWNLOAD_CHUNK_SIZE);
+			long range = journal.getContiguousBytes();
+			try {
+				journal.truncate(targetFile, range);
+			} catch (IOException e) {
+				throw new VDiskIOException(e);
+			}
+
 			RequestAndResponse rp = RESTUtility.streamRequestAndResponse(
-					RequestMethod.GET, session, location, null,
-					getRange(targetFile), metadata.md5, false, -1, true);
+					RequestMethod.GET, session, location, null, range,
+					metadata.md5, false, -1, true);
+
+			if (range > 0
+					&& rp.response.getStatusLine().getStatusCode() != VDiskServerException._206_OK) {
+				// 文件已改变，服务器返回了整个文件 // The file has changed, the
+				// server returns the whole file
+				journal.delete();
+				journal = DownloadJournal.open(targetFile, metadata.md5,
+						metadata.bytes, DOWNLOAD_CHUNK_SIZE);
+				try {
+					journal.truncate(targetFile, 0);
+				} catch (IOException e) {
+					rp.request.abort();
+					throw new VDiskIOException(e);
+				}
+			}
 
-			return new VDiskInputStream(rp.request, rp.response, metadata,
-					location);
+			if (DOWNLOAD_VERIFY) {
+				startVerify(journal, metadata, targetFile, rp.request);
+			}
+
+			VDiskInputStream dis = new VDiskInputStream(rp.request,
+					rp.response, metadata, location);
+			dis.setJournal(journal);
+			return dis;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Hashes the resumed part of the temp file and starts verifying the
+	 * download.
+	 */
+	private static void startVerify(DownloadJournal journal, Entry metadata,
+			File targetFile, HttpUriRequest request) throws VDiskIOException {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(targetFile, "rw");
+			journal.startVerify(metadata, file.getChannel());
+		} catch (IOException e) {
+			request.abort();
+			throw new VDiskIOException(e);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Get the info of the file which will be downloaded. The info includes the
 	 * download url and the metadata of the file.
@@ -1283,6 +2068,26 @@ public class VDiskAPI<SESS_T extends Session> {
 		return null;
 	}
 
+	/**
+	 * Renames the downloaded temp file, removing the
+	 * {@link #DOWNLOAD_TEMP_FILE_SUFFIX}.
+	 * 
+	 * @param targetFile
+	 *            the temp file, or null.
+	 */
+	static void renameDownloadTempFile(File targetFile) {
+		if (targetFile != null) {
+			String tempName = targetFile.getName();
+			File parent = targetFile.getParentFile();
+			if (tempName.endsWith(VDiskAPI.DOWNLOAD_TEMP_FILE_SUFFIX)) {
+				String filename = tempName.substring(0,
+						tempName.lastIndexOf("."));
+				File newFile = new File(parent, filename);
+				targetFile.renameTo(newFile);
+			}
+		}
+	}
+
 	/**
 	 * Get the range for resuming download
 	 * 
@@ -1566,10 +2371,23 @@ public class VDiskAPI<SESS_T extends Session> {
 
 		if (fileInfo == null
 				|| fileInfo.expireTime < System.currentTimeMillis()) {
-			// 计算sha1 // Compute sha1
+			// 一次读取文件，同时计算sha1和md5s // Compute sha1 and md5s in one
+			// read of the file
+			// 流水线模式下只计算sha1，md5在上传时计算 // In pipeline mode only
+			// sha1 is computed here, the md5s are computed while uploading
 			handler.assertCanceled();
 			handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileSHA1);
-			String sha1 = Digest.sha1Digest(srcPath);
+			FileDigest digest = null;
+			String sha1;
+			// 子类重写了makeMD5s()时仍然用它计算md5s // A subclass which
+			// overrides makeMD5s() still computes the md5s with it
+			boolean customMD5s = overridesMakeMD5s(handler);
+			if (UPLOAD_PIPELINE_MD5 || customMD5s) {
+				sha1 = Digest.sha1Digest(srcPath);
+			} else {
+				digest = handler.makeDigests(srcPath, length, segmentLength);
+				sha1 = digest.sha1;
+			}
 			Log.d(TAG, "sha1-->" + sha1);
 
 			// 批量签名 // Batch signature
@@ -1585,11 +2403,20 @@ public class VDiskAPI<SESS_T extends Session> {
 				return;
 			}
 
-			// 计算md5s // Compute md5s
-			handler.assertCanceled();
-			handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileMD5s);
-			fileInfo.md5s = handler.makeMD5s(srcPath, length, segmentLength);
-			Log.d(TAG, "md5s-->" + fileInfo.md5s);
+			if (digest != null) {
+				// md5s已经和sha1一起计算完毕 // The md5s were computed along
+				// with sha1
+				handler.assertCanceled();
+				handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileMD5s);
+				fileInfo.setMD5s(digest.getMD5s());
+				Log.d(TAG, "md5s-->" + fileInfo.md5s);
+			} else if (customMD5s) {
+				handler.assertCanceled();
+				handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileMD5s);
+				fileInfo.setMD5s(handler.makeMD5s(srcPath, length,
+						segmentLength));
+				Log.d(TAG, "md5s-->" + fileInfo.md5s);
+			}
 		}
 
 		// 开始上传 // Start to upload
@@ -1597,6 +2424,20 @@ public class VDiskAPI<SESS_T extends Session> {
 		startComplexUpload(fileInfo, length, handler, overwrite, parentRev);
 	}
 
+	/**
+	 * Returns whether the handler overrides
+	 * {@link ComplexUploadHandler#makeMD5s}.
+	 */
+	private static boolean overridesMakeMD5s(ComplexUploadHandler handler) {
+		try {
+			return handler.getClass()
+					.getMethod("makeMD5s", String.class, long.class,
+							long.class).getDeclaringClass() != ComplexUploadHandler.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Start uploading all segments to server.
 	 * 
@@ -1625,29 +2466,205 @@ public class VDiskAPI<SESS_T extends Session> {
 	private Entry startComplexUpload(VDiskUploadFileInfo fileInfo, long length,
 			ComplexUploadHandler handler, boolean overwrite, String parentRev)
 			throws VDiskException {
-		int startPoint = fileInfo.point;
+		int[] missing = fileInfo.getMissingSegments();
 
-		Log.d(TAG, "startPoint-->" + startPoint + ";segmentNum-->"
+		Log.d(TAG, "missing segments-->" + missing.length + ";segmentNum-->"
 				+ fileInfo.segmentNum);
-		// 开始续传 // Start to continuously upload
-		for (int i = startPoint; i < fileInfo.segmentNum; i++) {
-			handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusUploading);
 
+		int threads = Math.max(1, Math.min(UPLOAD_SEGMENT_THREADS,
+				missing.length));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(
+				executor);
+		SegmentProgress progress = new SegmentProgress(handler,
+				fileInfo.segmentNum, fileInfo.getUploadedBytes(length));
+		List<ComplexUploadRequest> requests = new ArrayList<ComplexUploadRequest>();
+
+		// 还有分段的md5未计算时，从上传的数据中计算 // If some segment's md5 is
+		// unknown, it is computed from the bytes being uploaded
+		RandomAccessFile md5File = null;
+		String[] uploadedMD5s = new String[fileInfo.segmentNum];
+
+		boolean finished = false;
+		try {
+			if (fileInfo.getMD5List() == null) {
+				md5File = new RandomAccessFile(fileInfo.srcPath, "r");
+				// 流水线模式下md5在上传时计算，仍然报告计算md5阶段 // In pipeline
+				// mode the md5s are computed while uploading, the md5 phase
+				// is still reported before it starts
+				handler.assertCanceled();
+				handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileMD5s);
+			}
+
+			// 只续传缺失的分段，同时保持threads个分段在上传 // Only upload the
+			// missing segments, keeping "threads" segments in flight
+			int next = 0;
+			int inFlight = 0;
+			while (next < missing.length || inFlight > 0) {
+				while (inFlight < threads && next < missing.length) {
+					handler.assertCanceled();
+					handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusUploading);
+					boolean needMD5 = md5File != null
+							&& (fileInfo.segmentMD5s == null || fileInfo.segmentMD5s[missing[next]] == null);
+					completionService.submit(new SegmentUploadTask(fileInfo,
+							missing[next], length, handler, progress, requests,
+							needMD5 ? uploadedMD5s : null));
+					next++;
+					inFlight++;
+				}
+
+				int index = takeUploadedSegment(completionService);
+				inFlight--;
+
+				if (uploadedMD5s[index] != null) {
+					fileInfo.setSegmentMD5(index, uploadedMD5s[index]);
+				}
+				fileInfo.markSegmentUploaded(index);
+				handler.updateUploadFileInfo(fileInfo);
+			}
+
+			// 续传时之前已上传分段的md5可能未知，需要读取计算 // When resuming,
+			// the md5 of a segment uploaded before may be unknown, it is read
+			// and computed then
+			for (int i = 0; i < fileInfo.segmentNum; i++) {
+				hashSegment(md5File, fileInfo, i, length, handler);
+			}
+			finished = true;
+		} catch (FileNotFoundException e) {
+			throw new VDiskFileNotFoundException(e);
+		} finally {
+			executor.shutdownNow();
+			if (md5File != null) {
+				try {
+					md5File.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (!finished) {
+				// 中断仍在上传的分段 // Abort the segments still in flight
+				synchronized (requests) {
+					for (ComplexUploadRequest request : requests) {
+						request.abort();
+					}
+				}
+			}
+		}
+
+		Entry entry = null;
+		try {
+			entry = startComplexUploadMerge(fileInfo, overwrite, parentRev);
+		} catch (VDiskServerException e) {
+			handler.deleteUploadFileInfo(fileInfo);
+			throw new VDiskServerException(e);
+		}
+
+		handler.deleteUploadFileInfo(fileInfo);
+		handler.finishedWithMetadata(entry);
+
+		return entry;
+	}
+
+	/**
+	 * Computes the md5 of the segment if it is unknown.
+	 * 
+	 * @param md5File
+	 *            the local file, or null if all the md5s are known.
+	 * @param fileInfo
+	 *            the file info of the uploading file.
+	 * @param index
+	 *            the index of the segment.
+	 * @param length
+	 *            the length of the local file.
+	 * @param handler
+	 *            the handler to control the upload session.
+	 * @throws VDiskException
+	 */
+	private static void hashSegment(RandomAccessFile md5File,
+			VDiskUploadFileInfo fileInfo, int index, long length,
+			ComplexUploadHandler handler) throws VDiskException {
+		if (md5File == null || fileInfo.segmentMD5s != null
+				&& fileInfo.segmentMD5s[index] != null) {
+			return;
+		}
+
+		handler.assertCanceled();
+		handler.startedWithStatus(ComplexUploadStatus.ComplexUploadStatusCreateFileMD5s);
+		String md5 = Digest.getMD5(md5File.getChannel(), index
+				* fileInfo.segmentLength,
+				fileInfo.getSegmentLength(index, length));
+		fileInfo.setSegmentMD5(index, md5);
+		Log.d(TAG, "md5 of segment " + index + "-->" + md5);
+	}
+
+	/**
+	 * Waits for the next segment upload to finish and returns its index.
+	 * 
+	 * @param completionService
+	 *            the completion service the segment uploads were submitted to.
+	 * @return the index of the finished segment.
+	 * @throws VDiskException
+	 *             the exception the segment upload failed with.
+	 */
+	private static int takeUploadedSegment(
+			CompletionService<Integer> completionService) throws VDiskException {
+		try {
+			Future<Integer> future = completionService.take();
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new VDiskPartialFileException(-1);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof VDiskException) {
+				throw (VDiskException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new VDiskException(cause);
+		}
+	}
+
+	/**
+	 * Uploads one segment of a large file.
+	 */
+	private final class SegmentUploadTask implements Callable<Integer> {
+		private final VDiskUploadFileInfo fileInfo;
+		private final int index;
+		private final long length;
+		private final ComplexUploadHandler handler;
+		private final SegmentProgress progress;
+		private final List<ComplexUploadRequest> requests;
+		private final String[] md5s;
+
+		/**
+		 * @param md5s
+		 *            where the md5 of the segment computed while uploading is
+		 *            stored, or null if it isn't needed.
+		 */
+		public SegmentUploadTask(VDiskUploadFileInfo fileInfo, int index,
+				long length, ComplexUploadHandler handler,
+				SegmentProgress progress, List<ComplexUploadRequest> requests,
+				String[] md5s) {
+			this.fileInfo = fileInfo;
+			this.index = index;
+			this.length = length;
+			this.handler = handler;
+			this.progress = progress;
+			this.requests = requests;
+			this.md5s = md5s;
+		}
+
+		@Override
+		public Integer call() throws VDiskException {
 			String url = "http://" + fileInfo.s3Host
-					+ fileInfo.partSigns.get(i + 1);
+					+ fileInfo.partSigns.get(index + 1);
 
 			Log.i(TAG, "large upload url-->" + url);
 
 			HttpPut req = new HttpPut(url);
 
-			long segmentLength = fileInfo.segmentLength;
-			long startPos = i * segmentLength;
-			long readLength = 0;
-			if (i == fileInfo.segmentNum - 1) {
-				readLength = length % segmentLength;
-			} else {
-				readLength = segmentLength;
-			}
+			long startPos = index * fileInfo.segmentLength;
+			long readLength = fileInfo.getSegmentLength(index, length);
 
 			ComplexUploadInputStreamEntity isEntity;
 			try {
@@ -1660,11 +2677,13 @@ public class VDiskAPI<SESS_T extends Session> {
 			}
 			isEntity.setContentType("application/octet-stream");
 			isEntity.setChunked(false);
+			isEntity.setComputeMD5(md5s != null);
 
 			HttpEntity entity = isEntity;
 
 			if (handler != null) {
-				entity = new ProgressHttpEntity(entity, handler);
+				entity = new ProgressHttpEntity(entity,
+						progress.listenerFor(index, startPos));
 			}
 
 			req.setEntity(entity);
@@ -1672,26 +2691,75 @@ public class VDiskAPI<SESS_T extends Session> {
 			ComplexUploadRequest uploadRequest = new ComplexUploadRequest(req,
 					session);
 
+			synchronized (requests) {
+				requests.add(uploadRequest);
+			}
 			handler.setUploadRequest(uploadRequest);
 
-			uploadRequest.upload();
+			try {
+				uploadRequest.upload();
+			} finally {
+				handler.removeUploadRequest(uploadRequest);
+				synchronized (requests) {
+					requests.remove(uploadRequest);
+				}
+			}
+
+			progress.segmentFinished(index, readLength);
+			if (md5s != null) {
+				md5s[index] = isEntity.getMD5();
+			}
 
-			fileInfo.point++;
-			handler.updateUploadFileInfo(fileInfo);
+			return index;
 		}
+	}
 
-		Entry entry = null;
-		try {
-			entry = startComplexUploadMerge(fileInfo, overwrite, parentRev);
-		} catch (VDiskServerException e) {
-			handler.deleteUploadFileInfo(fileInfo);
-			throw new VDiskServerException(e);
+	/**
+	 * Sums up the progress of the segments being uploaded at the same time and
+	 * reports it to the {@link ComplexUploadHandler}.
+	 */
+	private static final class SegmentProgress {
+		private final ComplexUploadHandler handler;
+		private final long[] sent;
+		private long finishedBytes;
+		private long inFlightBytes;
+
+		public SegmentProgress(ComplexUploadHandler handler, int segmentNum,
+				long finishedBytes) {
+			this.handler = handler;
+			this.sent = new long[segmentNum];
+			this.finishedBytes = finishedBytes;
 		}
 
-		handler.deleteUploadFileInfo(fileInfo);
-		handler.finishedWithMetadata(entry);
+		public ProgressListener listenerFor(final int index, final long startPos) {
+			return new ProgressListener() {
+				@Override
+				public void onProgress(long bytes, long total) {
+					// ProgressHttpEntity counts from the segment's start
+					// position.
+					segmentProgress(index, bytes - startPos, total);
+				}
 
-		return entry;
+				@Override
+				public long progressInterval() {
+					return handler.progressInterval();
+				}
+			};
+		}
+
+		private synchronized void segmentProgress(int index, long bytes,
+				long total) {
+			inFlightBytes += bytes - sent[index];
+			sent[index] = bytes;
+			handler.onProgress(finishedBytes + inFlightBytes, total);
+		}
+
+		public synchronized void segmentFinished(int index, long segmentLength) {
+			inFlightBytes -= sent[index];
+			sent[index] = 0;
+			finishedBytes += segmentLength;
+			handler.onProgress(finishedBytes + inFlightBytes, segmentLength);
+		}
 	}
 
 	/**
@@ -1726,7 +2794,7 @@ public class VDiskAPI<SESS_T extends Session> {
 				session.getAccessType().toString(), "path", fileInfo.desPath,
 				"s3host", fileInfo.s3Host, "upload_id", fileInfo.uploadId,
 				"upload_key", fileInfo.uploadKey, "sha1", fileInfo.sha1,
-				"md5_list", fileInfo.md5s, "overwrite",
+				"md5_list", fileInfo.getMD5List(), "overwrite",
 				String.valueOf(overwrite), "parent_rev", parentRev };
 
 		@SuppressWarnings("unchecked")
@@ -1807,6 +2875,13 @@ public class VDiskAPI<SESS_T extends Session> {
 	 * Downloads a thumbnail from VDisk, copying it to the output stream.
 	 * Returns the {@link VDiskFileInfo} for the downloaded thumbnail.
 	 * 
+	 * If a {@link ThumbnailCache} is set, the thumbnail is copied from the
+	 * cache when it has the current rev of the file, but the rev is only
+	 * known by asking the thumbnails API first, so every call still makes a
+	 * request, even on a cache hit. If you have the {@link Entry} of the
+	 * file, use {@link #getThumbnailBytes(Entry, ThumbSize)} instead, which
+	 * answers a cache hit without any request.
+	 * 
 	 * @param path
 	 *            the VDisk path to the file for which you want to get a
 	 *            thumbnail.
@@ -1844,6 +2919,30 @@ public class VDiskAPI<SESS_T extends Session> {
 	 */
 	public VDiskFileInfo getThumbnail(String path, OutputStream os,
 			ThumbSize size, ProgressListener listener) throws VDiskException {
+		ThumbnailCache cache = thumbnailCache;
+		if (cache != null) {
+			VDiskFileInfo fileInfo = getThumbnailInfo(path, size);
+			if (fileInfo == null) {
+				return null;
+			}
+
+			String rev = fileInfo.metadata != null ? fileInfo.metadata.rev
+					: null;
+			byte[] data = cache.get(path, rev, size);
+			if (data == null) {
+				data = downloadThumbnail(fileInfo, path, size, listener);
+			} else if (listener != null) {
+				listener.onProgress(data.length, data.length);
+			}
+
+			try {
+				os.write(data);
+			} catch (IOException e) {
+				throw new VDiskIOException(e);
+			}
+			return fileInfo;
+		}
+
 		VDiskInputStream thumb = getThumbnailStream(path, size);
 
 		if (thumb != null) {
@@ -1854,6 +2953,73 @@ public class VDiskAPI<SESS_T extends Session> {
 		}
 	}
 
+	/**
+	 * 返回文件的缩略图。如果设置了{@link ThumbnailCache}并且缓存的缩略图和entry的rev一致，直接返回缓存，不访问网络。
+	 *
+	 * Returns the thumbnail of a file. If a {@link ThumbnailCache} is set and
+	 * it has the thumbnail of the rev of the entry, the cached thumbnail is
+	 * returned without any request.
+	 *
+	 * @param entry
+	 *            the metadata of the file, with its path and rev.
+	 * @param size
+	 *            the size of the thumbnail.
+	 *
+	 * @return the data of the thumbnail, which must not be modified, or null
+	 *         if the file has no thumbnail.
+	 *
+	 * @throws VDiskException
+	 *             as {@link #getThumbnail}.
+	 */
+	public byte[] getThumbnailBytes(Entry entry, ThumbSize size)
+			throws VDiskException {
+		ThumbnailCache cache = thumbnailCache;
+		if (cache != null) {
+			byte[] data = cache.get(entry.path, entry.rev, size);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		VDiskFileInfo fileInfo = getThumbnailInfo(entry.path, size);
+		if (fileInfo == null) {
+			return null;
+		}
+		return downloadThumbnail(fileInfo, entry.path, size, null);
+	}
+
+	/**
+	 * Downloads the thumbnail at the location of the info, and caches it if a
+	 * {@link ThumbnailCache} is set.
+	 */
+	private byte[] downloadThumbnail(VDiskFileInfo fileInfo, String path,
+			ThumbSize size, ProgressListener listener) throws VDiskException {
+		byte[] data = readThumbnail(fileInfo.downloadURL, fileInfo.metadata,
+				listener);
+
+		ThumbnailCache cache = thumbnailCache;
+		if (cache != null && fileInfo.metadata != null) {
+			cache.put(path, fileInfo.metadata.rev, size, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Reads the thumbnail at the url into memory.
+	 */
+	private byte[] readThumbnail(String url, Entry metadata,
+			ProgressListener listener) throws VDiskException {
+		RequestAndResponse rp = RESTUtility.streamRequestAndResponse(
+				RequestMethod.GET, session, url, null);
+		VDiskInputStream thumb = new VDiskInputStream(rp.request, rp.response,
+				metadata, url);
+		long length = thumb.getFileInfo().getContentLength();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+				length > 0 && length < Integer.MAX_VALUE ? (int) length : 8192);
+		thumb.copyStreamToOutput(baos, null, listener, true);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Downloads a thumbnail from VDisk. Returns a {@link VDiskInputStream} via
 	 * which the thumbnail can be read from the network. You must close the
@@ -1927,6 +3093,27 @@ public class VDiskAPI<SESS_T extends Session> {
 			path = "/" + path;
 		}
 
+		if (!COALESCE_REQUESTS) {
+			return fetchThumbnailInfo(path, size);
+		}
+
+		final String thumbPath = path;
+		final ThumbSize thumbSize = size;
+		try {
+			return thumbnailInfoFlights.execute(path.toLowerCase() + "#"
+					+ size.toAPISize(), new Callable<VDiskFileInfo>() {
+				public VDiskFileInfo call() throws Exception {
+					return fetchThumbnailInfo(thumbPath, thumbSize);
+				}
+			});
+		} catch (Exception e) {
+			throw asVDiskException(e);
+		}
+	}
+
+	private VDiskFileInfo fetchThumbnailInfo(String path, ThumbSize size)
+			throws VDiskException {
+
 		String target = "/thumbnails/" + session.getAccessType() + path;
 		String[] params = { "size", size.toAPISize() };
 		RequestAndResponse r = RESTUtility.streamRequest(RequestMethod.GET,
@@ -1958,7 +3145,9 @@ public class VDiskAPI<SESS_T extends Session> {
 	 *            stored, pass in the returned hash. If the directory has not
 	 *            changed since you got the hash, a 304
 	 *            {@link VDiskServerException} will be thrown. Pass in null for
-	 *            files or unknown directories.
+	 *            files or unknown directories, then the hash in the
+	 *            {@link MetadataCache} is sent if the directory is cached, and
+	 *            the cached {@link Entry} is returned if it has not changed.
 	 * @param list
 	 *            if true, returns metadata for a directory's immediate
 	 *            children, or just the directory entry itself if false. Ignored
@@ -1991,6 +3180,19 @@ public class VDiskAPI<SESS_T extends Session> {
 			boolean includeDeleted) throws VDiskException {
 		assertAuthenticated();
 
+		if (!COALESCE_REQUESTS) {
+			return fetchMetadata(path, hash, list, includeDeleted);
+		}
+		try {
+			return coalescedMetadata(path, hash, list, includeDeleted);
+		} catch (Exception e) {
+			throw asVDiskException(e);
+		}
+	}
+
+	private Entry fetchMetadata(String path, String hash, boolean list,
+			boolean includeDeleted) throws VDiskException {
+
 		if (!path.startsWith("/")) {
 			path = "/" + path;
 		}
@@ -2000,12 +3202,203 @@ public class VDiskAPI<SESS_T extends Session> {
 
 		String url_path = "/metadata/" + session.getAccessType() + path;
 
-		@SuppressWarnings("unchecked")
-		Map<String, Object> dirinfo = (Map<String, Object>) RESTUtility
-				.request(RequestMethod.GET, session.getAPIServer(), url_path,
-						VERSION, params, session);
+		// 自动带上缓存的hash // Send the cached hash automatically
+		MetadataCache cache = metadataCache;
+		String key = null;
+		Entry cached = null;
+		if (cache != null && hash == null) {
+			key = MetadataCache.key(path, list, includeDeleted);
+			cached = cache.get(key);
+			if (cached != null) {
+				params[1] = cached.hash;
+			}
+		}
 
-		return new Entry(dirinfo);
+		// 流式解析，大目录不生成中间的JSONObject // Parse as a stream, so that a
+		// big folder doesn't build the intermediate JSONObject
+		EntryStreamParser.EntryHandler handler = new EntryStreamParser.EntryHandler();
+		try {
+			RESTUtility.request(RequestMethod.GET, session.getAPIServer(),
+					url_path, VERSION, params, session, handler);
+		} catch (VDiskServerException e) {
+			if (cached != null
+					&& e.error == VDiskServerException._304_NOT_MODIFIED) {
+				cache.hit();
+				return cached;
+			}
+			throw e;
+		}
+
+		Entry entry = handler.getEntry();
+		if (entry == null) {
+			throw new VDiskParseException("Error parsing /metadata results");
+		}
+		if (key != null) {
+			cache.miss();
+			cache.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Gets the metadata of many paths at once. At most
+	 * {@link #METADATA_BATCH_THREADS} requests run at the same time over the
+	 * session's shared HttpClient. A path given more than once is only
+	 * requested once, and with {@link #COALESCE_REQUESTS} a path already
+	 * being looked up by another call waits for its result.
+	 * 
+	 * @param paths
+	 *            the VDisk paths to the files or directories.
+	 * @param list
+	 *            if true, also gets the metadata of the directories' contents.
+	 * 
+	 * @return a map of each path to its {@link MetadataResult}, in the order
+	 *         of the paths. A path that failed has the error in its result
+	 *         instead of the entry.
+	 * 
+	 * @throws VDiskUnlinkedException
+	 *             if you have not set an access token pair on the session.
+	 * @throws VDiskException
+	 *             if this thread is interrupted while waiting.
+	 */
+	public Map<String, MetadataResult> metadata(Collection<String> paths,
+			final boolean list) throws VDiskException {
+		assertAuthenticated();
+
+		Map<String, MetadataResult> results = new LinkedHashMap<String, MetadataResult>();
+		LinkedHashSet<String> uniquePaths = new LinkedHashSet<String>(paths);
+		if (uniquePaths.isEmpty()) {
+			return results;
+		}
+
+		int threads = Math.max(1, Math.min(METADATA_BATCH_THREADS,
+				uniquePaths.size()));
+		CompletionService<Entry> completionService = new ExecutorCompletionService<Entry>(
+				getBatchExecutor());
+		HashMap<Future<Entry>, String> futures = new HashMap<Future<Entry>, String>();
+		HashMap<String, MetadataResult> done = new HashMap<String, MetadataResult>();
+		try {
+			// 保持threads个请求在进行 // Keep "threads" requests in flight
+			Iterator<String> next = uniquePaths.iterator();
+			while (next.hasNext() || !futures.isEmpty()) {
+				while (futures.size() < threads && next.hasNext()) {
+					final String path = next.next();
+					futures.put(completionService.submit(new Callable<Entry>() {
+						public Entry call() throws Exception {
+							return metadata(path, null, list, false);
+						}
+					}), path);
+				}
+
+				Future<Entry> future;
+				try {
+					future = completionService.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VDiskException(
+							"Interrupted while getting metadata.", e);
+				}
+				done.put(futures.remove(future), getMetadataResult(future));
+			}
+		} finally {
+			// 只取消排队的请求，不中断进行中的请求，它的结果可能被其他调用者共享 //
+			// Only cancel the queued requests, a request in flight isn't
+			// interrupted since other callers may share its result
+			for (Future<Entry> future : futures.keySet()) {
+				future.cancel(false);
+			}
+		}
+
+		for (String path : uniquePaths) {
+			results.put(path, done.get(path));
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the executor shared by the batches of this api, the metadata
+	 * and the thumbnail batches. Each batch keeps no more than its own number
+	 * of requests in it, and the idle threads stop after a while.
+	 */
+	private synchronized ExecutorService getBatchExecutor() {
+		if (batchExecutor == null) {
+			int threads = Math.max(1, Math.max(METADATA_BATCH_THREADS,
+					THUMBNAIL_LOADER_THREADS));
+			batchExecutor = new ThreadPoolExecutor(threads, threads, 30L,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			batchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return batchExecutor;
+	}
+
+	/**
+	 * Gets the metadata, or waits for the same lookup already in flight and
+	 * shares its result.
+	 */
+	private Entry coalescedMetadata(final String path, final String hash,
+			final boolean list, final boolean includeDeleted) throws Exception {
+		String key = MetadataCache.key(path.startsWith("/") ? path : "/"
+				+ path, list, includeDeleted)
+				+ (hash == null ? "" : "#" + hash);
+		return metadataFlights.execute(key, new Callable<Entry>() {
+			public Entry call() throws Exception {
+				return fetchMetadata(path, hash, list, includeDeleted);
+			}
+		});
+	}
+
+	/**
+	 * Rethrows the exception of a coalesced call as a VDiskException.
+	 */
+	private static VDiskException asVDiskException(Exception e) {
+		if (e instanceof VDiskException) {
+			return (VDiskException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof InterruptedException) {
+			Thread.currentThread().interrupt();
+			return new VDiskException(
+					"Interrupted while waiting for the request.", e);
+		}
+		return new VDiskException(e);
+	}
+
+	private static MetadataResult getMetadataResult(Future<Entry> future)
+			throws VDiskException {
+		try {
+			return new MetadataResult(future.get(), null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VDiskException("Interrupted while getting metadata.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof VDiskException) {
+				return new MetadataResult(null, (VDiskException) cause);
+			}
+			return new MetadataResult(null, new VDiskException(cause));
+		}
+	}
+
+	/**
+	 * The metadata of one path in a batch (returned by
+	 * {@link VDiskAPI#metadata(Collection, boolean)}), either the entry or the
+	 * error.
+	 */
+	public static final class MetadataResult {
+		/** The metadata, or null if it failed. */
+		public final Entry entry;
+
+		/** Why it failed, or null if it succeeded. */
+		public final VDiskException error;
+
+		public MetadataResult(Entry entry, VDiskException error) {
+			this.entry = entry;
+			this.error = error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
 	}
 
 	/**
@@ -2542,12 +3935,11 @@ public class VDiskAPI<SESS_T extends Session> {
 	 */
 	protected static boolean getFromMapAsBoolean(Map<String, Object> map,
 			String name) {
-		Object val = map.get(name);
-		if (val != null && val instanceof Boolean) {
-			return ((Boolean) val).booleanValue();
-		} else {
-			return false;
-		}
+		return asBoolean(map.get(name));
+	}
+
+	private static boolean asBoolean(Object val) {
+		return val instanceof Boolean && ((Boolean) val).booleanValue();
 	}
 
 	/**
@@ -2693,17 +4085,118 @@ public class VDiskAPI<SESS_T extends Session> {
 	 *             occurred.
 	 */
 	public DeltaPage<Entry> delta(String cursor) throws VDiskException {
+		final List<DeltaEntry<Entry>> entries = new ArrayList<DeltaEntry<Entry>>();
+		DeltaCursor result = delta(cursor, new DeltaVisitor() {
+			public void onReset() {
+			}
+
+			public void onDeltaEntry(DeltaEntry<Entry> entry) {
+				entries.add(entry);
+			}
+		});
+		return new DeltaPage<Entry>(result.reset, entries, result.cursor,
+				result.hasMore);
+	}
+
+	/**
+	 * Same as {@link #delta(String)}, but each {@link DeltaEntry} is handed
+	 * to the visitor as soon as it has been parsed, while the page is still
+	 * downloading, instead of being collected into a {@link DeltaPage}. A page
+	 * of any size is consumed in constant memory.
+	 * 
+	 * <p>
+	 * If the server asks to reset, {@link DeltaVisitor#onReset()} is called
+	 * before the first entry. The response normally sends "reset" before
+	 * "entries"; if it doesn't, the entries parsed before "reset" are held
+	 * back until it is known.
+	 * </p>
+	 * 
+	 * @param cursor
+	 *            On the first call, you should pass in <code>null</code>. On
+	 *            subsequent calls, pass in the {@link DeltaCursor#cursor
+	 *            cursor} returned by the previous call.
+	 * @param visitor
+	 *            receives the entries of the page in order, on the calling
+	 *            thread. A RuntimeException thrown by it stops the parsing and
+	 *            is rethrown.
+	 * 
+	 * @return the cursor of the page and whether there are more pages.
+	 * 
+	 * @throws VDiskUnlinkedException
+	 *             if you have not set an access token pair on the session, or
+	 *             if the user has revoked access.
+	 * @throws VDiskException
+	 *             for any other unknown errors.
+	 */
+	public DeltaCursor delta(String cursor, DeltaVisitor visitor)
+			throws VDiskException {
 		String[] params = new String[] { "cursor", cursor };
 		String path = "/delta/" + session.getAccessType();
 
-		Object json = RESTUtility.request(RequestMethod.POST,
-				session.getAPIServer(), path, VERSION, params, session);
-		try {
-			return DeltaPage.extractFromJson(new JsonThing(json),
-					Entry.JsonExtractor);
-		} catch (JsonExtractionException ex) {
-			throw new VDiskParseException("Error parsing /delta results: "
-					+ ex.getMessage());
+		EntryStreamParser.DeltaHandler handler = new EntryStreamParser.DeltaHandler(
+				visitor);
+		RESTUtility.request(RequestMethod.POST, session.getAPIServer(), path,
+				VERSION, params, session, handler);
+		if (!handler.isComplete()) {
+			throw new VDiskParseException(
+					"Error parsing /delta results: missing reset, cursor or has_more");
+		}
+		return new DeltaCursor(handler.isReset(), handler.getCursor(),
+				handler.hasMore(), handler.getEntryCount());
+	}
+
+	/**
+	 * Receives the entries of a delta page one by one (used by
+	 * {@link #delta(String, DeltaVisitor)}).
+	 */
+	public interface DeltaVisitor {
+		/**
+		 * The server asks to reset your local state to be an empty folder
+		 * before applying the entries. Called before the first entry.
+		 */
+		public void onReset();
+
+		/**
+		 * Apply this entry to your local state. See {@link DeltaEntry} for
+		 * how.
+		 */
+		public void onDeltaEntry(DeltaEntry<Entry> entry);
+	}
+
+	/**
+	 * The state after a delta page has been visited (returned by
+	 * {@link #delta(String, DeltaVisitor)}).
+	 */
+	public static final class DeltaCursor {
+		/**
+		 * Whether {@link DeltaVisitor#onReset()} has been called.
+		 */
+		public final boolean reset;
+
+		/**
+		 * Pass in this value to the next call of {@link #delta delta} to pick
+		 * up where you left off.
+		 */
+		public final String cursor;
+
+		/**
+		 * If <code>true</code>, then there are more entries available; you can
+		 * call {@link #delta delta} again immediately to retrieve those
+		 * entries.
+		 */
+		public final boolean hasMore;
+
+		/**
+		 * The number of entries visited.
+		 */
+		public final int entryCount;
+
+		public DeltaCursor(boolean reset, String cursor, boolean hasMore,
+				int entryCount) {
+			this.reset = reset;
+			this.cursor = cursor;
+			this.hasMore = hasMore;
+			this.entryCount = entryCount;
 		}
 	}
 
@@ -3056,6 +4549,178 @@ public class VDiskAPI<SESS_T extends Session> {
 		return entries;
 	}
 
+	/**
+	 * 批量获取{@link #getPhotos}返回的文件的缩略图。
+	 * 直接下载每个Entry的thumb地址，最多{@link #THUMBNAIL_LOADER_THREADS}个请求
+	 * 同时进行，共用session连接池中的长连接；
+	 * 每张缩略图下载完成后立即交给listener，顺序为完成的顺序。
+	 *
+	 * Gets the thumbnails of the entries returned by {@link #getPhotos}. The
+	 * thumb url of each entry is downloaded directly, without asking the
+	 * thumbnails API for the location first, with at most
+	 * {@link #THUMBNAIL_LOADER_THREADS} requests at the same time over the
+	 * kept-alive connections of the session's pool. Each thumbnail is handed
+	 * to the listener on the calling thread as soon as it has been
+	 * downloaded, in the order they complete. Entries without a thumb url are
+	 * fetched through {@link #getThumbnailBytes(Entry, ThumbSize)}. If a
+	 * {@link ThumbnailCache} is set, cached thumbnails of the same rev are
+	 * not downloaded again, and downloaded ones are cached.
+	 *
+	 * @param photos
+	 *            the entries returned by {@link #getPhotos}.
+	 * @param size
+	 *            the size passed to {@link #getPhotos}.
+	 * @param listener
+	 *            receives the thumbnails.
+	 *
+	 * @return the totals of the batch, including its throughput.
+	 *
+	 * @throws VDiskUnlinkedException
+	 *             if you have not set an access token pair on the session.
+	 * @throws VDiskException
+	 *             if this thread is interrupted while waiting.
+	 */
+	public ThumbnailBatchStats getPhotoThumbnails(List<Entry> photos,
+			final ThumbSize size, ThumbnailBatchListener listener)
+			throws VDiskException {
+		assertAuthenticated();
+
+		long start = System.currentTimeMillis();
+		int count = 0;
+		int failed = 0;
+		long bytes = 0;
+		if (photos.isEmpty()) {
+			return new ThumbnailBatchStats(0, 0, 0, 0);
+		}
+
+		int threads = Math.max(1, Math.min(THUMBNAIL_LOADER_THREADS,
+				photos.size()));
+		CompletionService<byte[]> completionService = new ExecutorCompletionService<byte[]>(
+				getBatchExecutor());
+		HashMap<Future<byte[]>, Entry> futures = new HashMap<Future<byte[]>, Entry>();
+		try {
+			// 保持threads个请求在进行 // Keep "threads" requests in flight
+			Iterator<Entry> next = photos.iterator();
+			while (next.hasNext() || !futures.isEmpty()) {
+				while (futures.size() < threads && next.hasNext()) {
+					final Entry photo = next.next();
+					futures.put(completionService.submit(new Callable<byte[]>() {
+						public byte[] call() throws Exception {
+							return getPhotoThumbnail(photo, size);
+						}
+					}), photo);
+				}
+
+				Future<byte[]> future;
+				try {
+					future = completionService.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VDiskException(
+							"Interrupted while getting thumbnails.", e);
+				}
+
+				Entry photo = futures.remove(future);
+				try {
+					byte[] data = future.get();
+					count++;
+					if (data != null) {
+						bytes += data.length;
+					}
+					listener.onThumbnail(photo, data);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VDiskException(
+							"Interrupted while getting thumbnails.", e);
+				} catch (ExecutionException e) {
+					failed++;
+					Throwable cause = e.getCause();
+					listener.onThumbnailFailed(photo,
+							cause instanceof VDiskException ? (VDiskException) cause
+									: new VDiskException(cause));
+				}
+			}
+		} finally {
+			// 只取消排队的请求 // Only cancel the queued requests
+			for (Future<byte[]> future : futures.keySet()) {
+				future.cancel(false);
+			}
+		}
+		return new ThumbnailBatchStats(count, failed, bytes,
+				System.currentTimeMillis() - start);
+	}
+
+	private byte[] getPhotoThumbnail(Entry photo, ThumbSize size)
+			throws VDiskException {
+		if (photo.thumb == null) {
+			return getThumbnailBytes(photo, size);
+		}
+
+		ThumbnailCache cache = thumbnailCache;
+		if (cache != null) {
+			byte[] data = cache.get(photo.path, photo.rev, size);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		byte[] data = readThumbnail(photo.thumb, photo, null);
+		if (cache != null) {
+			cache.put(photo.path, photo.rev, size, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Receives the thumbnails of
+	 * {@link VDiskAPI#getPhotoThumbnails(List, ThumbSize, ThumbnailBatchListener)}
+	 * on the calling thread, in the order they complete.
+	 */
+	public interface ThumbnailBatchListener {
+		void onThumbnail(Entry photo, byte[] data);
+
+		void onThumbnailFailed(Entry photo, VDiskException e);
+	}
+
+	/**
+	 * The totals of a batch of thumbnails.
+	 */
+	public static final class ThumbnailBatchStats {
+		/** How many thumbnails were got. */
+		public final int count;
+
+		/** How many thumbnails failed. */
+		public final int failed;
+
+		/** The bytes of all the thumbnails got. */
+		public final long bytes;
+
+		/** How long the batch took in milliseconds. */
+		public final long elapsedMillis;
+
+		public ThumbnailBatchStats(int count, int failed, long bytes,
+				long elapsedMillis) {
+			this.count = count;
+			this.failed = failed;
+			this.bytes = bytes;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * Returns the throughput of the batch in bytes per second.
+		 */
+		public long getBytesPerSecond() {
+			return elapsedMillis > 0 ? bytes * 1000 / elapsedMillis : bytes;
+		}
+
+		/**
+		 * Returns how many thumbnails were got per second.
+		 */
+		public float getThumbnailsPerSecond() {
+			return elapsedMillis > 0 ? count * 1000f / elapsedMillis : count;
+		}
+	}
+
 	/**
 	 * 调用微盘的其他API
 	 * 
@@ -3099,7 +4764,10 @@ public class VDiskAPI<SESS_T extends Session> {
 	 * @return the value, with 0 as a default if no parameter set
 	 */
 	protected static long getFromMapAsLong(Map<String, Object> map, String name) {
-		Object val = map.get(name);
+		return asLong(map.get(name));
+	}
+
+	private static long asLong(Object val) {
 		long ret = 0;
 		if (val != null) {
 			if (val instanceof Number) {
@@ -3124,7 +4792,10 @@ public class VDiskAPI<SESS_T extends Session> {
 	 */
 	protected static String getFromMapAsString(Map<String, Object> map,
 			String name) {
-		Object val = map.get(name);
+		return asString(map.get(name));
+	}
+
+	private static String asString(Object val) {
 		String ret = null;
 		if (val != null) {
 			if (val instanceof Number) {
@@ -10,7 +10,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.SSLContext;
@@ -36,7 +40,9 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRoute;
 import org.apache.http.conn.routing.HttpRoute;
@@ -84,14 +90,43 @@ public abstract class AbstractSession implements Session {
 
 	protected static boolean useWeiboToken;
 
-	/** How long connections are kept alive. */
-	private static final int KEEP_ALIVE_DURATION_SECS = 20;
+	/**
+	 * The max connections to the API server kept by the pool of a session's
+	 * {@link HttpClient}.
+	 */
+	public static int MAX_API_CONNECTIONS = 10;
+
+	/**
+	 * The max connections to the upload server kept by the pool.
+	 */
+	public static int MAX_UPLOAD_CONNECTIONS = 10;
+
+	/**
+	 * The max connections to any other host, e.g. the download CDN, kept by
+	 * the pool for each host.
+	 */
+	public static int MAX_DOWNLOAD_CONNECTIONS = 10;
+
+	/**
+	 * The max connections kept by the pool in all. Read when the
+	 * {@link HttpClient} of a session is created; the limits per host are read
+	 * when a host is first connected.
+	 */
+	public static int MAX_TOTAL_CONNECTIONS = 20;
+
+	/**
+	 * How long connections are kept alive, unless the server asks for less.
+	 */
+	public static int KEEP_ALIVE_DURATION_SECS = 20;
+
+	/** How long an unused connection stays in the pool before it's closed. */
+	public static int IDLE_CONNECTION_TIMEOUT_SECS = 20;
 
 	/** How often the monitoring thread checks for connections to close. */
 	private static final int KEEP_ALIVE_MONITOR_INTERVAL_SECS = 5;
 
-	/** The default timeout for client connections. */
-	private static final int DEFAULT_TIMEOUT_MILLIS = 30000; // 30 seconds
+	/** The timeout for client connections. */
+	public static int REQUEST_TIMEOUT_MILLIS = 30000; // 30 seconds
 
 	private final AccessType accessType;
 	private final AppKeyPair appKeyPair;
@@ -102,6 +137,10 @@ public abstract class AbstractSession implements Session {
 
 	private HttpClient client = null;
 
+	private HttpTransport transport = null;
+
+	private DBClientConnManager connManager = null;
+
 	/**
 	 * Creates a new session with the given app key and secret, and access type.
 	 * The session will not be linked because it has no access token pair.
@@ -247,10 +286,17 @@ public abstract class AbstractSession implements Session {
 					new ConnPerRoute() {
 						@Override
 						public int getMaxForRoute(HttpRoute route) {
-							return 10;
+							String host = route.getTargetHost().getHostName();
+							if (host.equalsIgnoreCase(getAPIServer())) {
+								return MAX_API_CONNECTIONS;
+							} else if (host.equalsIgnoreCase(getUploadServer())) {
+								return MAX_UPLOAD_CONNECTIONS;
+							}
+							return MAX_DOWNLOAD_CONNECTIONS;
 						}
 					});
-			ConnManagerParams.setMaxTotalConnections(connParams, 20);
+			ConnManagerParams.setMaxTotalConnections(connParams,
+					MAX_TOTAL_CONNECTIONS);
 
 			// Set up scheme registry.
 			SchemeRegistry schemeRegistry = new SchemeRegistry();
@@ -264,13 +310,14 @@ public abstract class AbstractSession implements Session {
 
 			DBClientConnManager cm = new DBClientConnManager(connParams,
 					schemeRegistry);
+			connManager = cm;
 
 			// Set up client params.
 			HttpParams httpParams = new BasicHttpParams();
 			HttpConnectionParams.setConnectionTimeout(httpParams,
-					DEFAULT_TIMEOUT_MILLIS);
+					REQUEST_TIMEOUT_MILLIS);
 			HttpConnectionParams.setSoTimeout(httpParams,
-					DEFAULT_TIMEOUT_MILLIS);
+					REQUEST_TIMEOUT_MILLIS);
 			HttpConnectionParams.setSocketBufferSize(httpParams, 8192);
 			HttpProtocolParams.setUserAgent(httpParams, makeUserAgent());
 			httpParams.setParameter(ClientPNames.HANDLE_REDIRECTS, false);
@@ -328,6 +375,76 @@ public abstract class AbstractSession implements Session {
 		return client;
 	}
 
+	/**
+	 * Will be called every time a request is made to VDisk. Returns the
+	 * transport set by {@link #setHttpTransport(HttpTransport)}, or else
+	 * creates one of the type of {@link VDiskAPI#HTTP_TRANSPORT} and keeps
+	 * it. The type is only read when the transport is created, so changing
+	 * it later doesn't change the transport of this session.
+	 */
+	public synchronized HttpTransport getHttpTransport() {
+		if (transport == null) {
+			if (VDiskAPI.HTTP_TRANSPORT == VDiskAPI.TransportType.URL_CONNECTION) {
+				transport = new UrlConnectionTransport(this, makeUserAgent(),
+						REQUEST_TIMEOUT_MILLIS, new RetryHandler(
+								DEFAULT_MAX_RETRIES));
+			} else {
+				transport = new ApacheHttpTransport(this);
+			}
+		}
+		return transport;
+	}
+
+	/**
+	 * Sets the transport which sends the requests of this session, or null to
+	 * use the default of {@link VDiskAPI#HTTP_TRANSPORT}.
+	 */
+	public synchronized void setHttpTransport(HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the live statistics of the connection pool of this session's
+	 * {@link HttpClient}, or null if it hasn't been created yet.
+	 */
+	public synchronized ConnectionPoolStats getConnectionPoolStats() {
+		if (connManager == null) {
+			return null;
+		}
+		return connManager.getStats();
+	}
+
+	/**
+	 * A snapshot of the connection pool of a session.
+	 */
+	public static final class ConnectionPoolStats {
+		/** The connections in use by requests. */
+		public final int leased;
+
+		/** The idle connections which can be reused. */
+		public final int available;
+
+		/** The requests waiting for a connection. */
+		public final int pending;
+
+		/** The max connections in all. */
+		public final int max;
+
+		public ConnectionPoolStats(int leased, int available, int pending,
+				int max) {
+			this.leased = leased;
+			this.available = available;
+			this.pending = pending;
+			this.max = max;
+		}
+
+		@Override
+		public String toString() {
+			return "leased: " + leased + ", available: " + available
+					+ ", pending: " + pending + ", max: " + max;
+		}
+	}
+
 	private String makeUserAgent() {
 
 		String str = "OfficialVdiskAndroidSdk/" + VDiskAPI.SDK_VERSION;
@@ -434,9 +551,9 @@ public abstract class AbstractSession implements Session {
 	@Override
 	public void setRequestTimeout(HttpUriRequest request) {
 		HttpParams reqParams = request.getParams();
-		HttpConnectionParams.setSoTimeout(reqParams, DEFAULT_TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(reqParams, REQUEST_TIMEOUT_MILLIS);
 		HttpConnectionParams.setConnectionTimeout(reqParams,
-				DEFAULT_TIMEOUT_MILLIS);
+				REQUEST_TIMEOUT_MILLIS);
 	}
 
 	@Override
@@ -454,8 +571,8 @@ public abstract class AbstractSession implements Session {
 		@Override
 		public long getKeepAliveDuration(HttpResponse response,
 				HttpContext context) {
-			// Keep-alive for the shorter of 20 seconds or what the server
-			// specifies.
+			// Keep-alive for the shorter of KEEP_ALIVE_DURATION_SECS or what
+			// the server specifies.
 			long timeout = KEEP_ALIVE_DURATION_SECS * 1000;
 
 			HeaderElementIterator i = new BasicHeaderElementIterator(
@@ -591,16 +708,71 @@ public abstract class AbstractSession implements Session {
 
 	private static class DBClientConnManager extends
 			ThreadSafeClientConnManager {
+		private final int maxTotal;
+
+		/**
+		 * The connections handed out and not released yet. A connection is
+		 * only counted once, even if it's released more than once or wasn't
+		 * handed out through this manager.
+		 */
+		private final Set<ManagedClientConnection> leased = Collections
+				.synchronizedSet(Collections
+						.newSetFromMap(new IdentityHashMap<ManagedClientConnection, Boolean>()));
+
+		/** The threads waiting for a connection. */
+		private final AtomicInteger pending = new AtomicInteger();
+
 		public DBClientConnManager(HttpParams params, SchemeRegistry schreg) {
 			super(params, schreg);
+			maxTotal = ConnManagerParams.getMaxTotalConnections(params);
 		}
 
 		@Override
 		public ClientConnectionRequest requestConnection(HttpRoute route,
 				Object state) {
 			IdleConnectionCloserThread.ensureRunning(this,
-					KEEP_ALIVE_DURATION_SECS, KEEP_ALIVE_MONITOR_INTERVAL_SECS);
-			return super.requestConnection(route, state);
+					IDLE_CONNECTION_TIMEOUT_SECS,
+					KEEP_ALIVE_MONITOR_INTERVAL_SECS);
+			final ClientConnectionRequest request = super.requestConnection(
+					route, state);
+			return new ClientConnectionRequest() {
+				@Override
+				public ManagedClientConnection getConnection(long timeout,
+						TimeUnit tunit) throws InterruptedException,
+						ConnectionPoolTimeoutException {
+					pending.incrementAndGet();
+					try {
+						ManagedClientConnection conn = request.getConnection(
+								timeout, tunit);
+						leased.add(conn);
+						return conn;
+					} finally {
+						pending.decrementAndGet();
+					}
+				}
+
+				@Override
+				public void abortRequest() {
+					request.abortRequest();
+				}
+			};
+		}
+
+		@Override
+		public void releaseConnection(ManagedClientConnection conn,
+				long validDuration, TimeUnit timeUnit) {
+			try {
+				super.releaseConnection(conn, validDuration, timeUnit);
+			} finally {
+				leased.remove(conn);
+			}
+		}
+
+		ConnectionPoolStats getStats() {
+			int leasedNow = leased.size();
+			return new ConnectionPoolStats(leasedNow, Math.max(0,
+					getConnectionsInPool() - leasedNow), pending.get(),
+					maxTotal);
 		}
 	}
 
@@ -0,0 +1,100 @@
+package com.vdisk.net.session;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import com.vdisk.net.session.Session.ProxyInfo;
+
+/**
+ * 使用{@link Session#getHttpClient()}返回的Apache HttpClient发送请求，这是默认的传输层。
+ *
+ * Sends the requests with the Apache HttpClient returned by
+ * {@link Session#getHttpClient()}, and its pooled connections. This is the
+ * default transport.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+
+	private final Session session;
+
+	public ApacheHttpTransport(Session session) {
+		this.session = session;
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException {
+		HttpClient client = updatedHttpClient();
+
+		HttpResponse response = null;
+		for (int retries = 0; response == null && retries < 5; retries++) {
+			/*
+			 * The try/catch is a workaround for a bug in the HttpClient
+			 * libraries. It should be returning null instead when an error
+			 * occurs. Fixed in HttpClient 4.1, but we're stuck with this for
+			 * now. See: http://code.google.com/p/android/issues/detail?id=5255
+			 */
+			try {
+				response = client.execute(request, context);
+			} catch (NullPointerException e) {
+			}
+
+			/*
+			 * We've potentially connected to a different network, but are
+			 * still using the old proxy settings. Refresh proxy settings so
+			 * that we can retry this request.
+			 */
+			if (response == null) {
+				updateClientProxy(client);
+			}
+		}
+		return response;
+	}
+
+	@Override
+	public HttpRequestRetryHandler getRetryHandler() {
+		HttpClient client = session.getHttpClient();
+		if (client instanceof DefaultHttpClient) {
+			return ((DefaultHttpClient) client).getHttpRequestRetryHandler();
+		}
+		return new RetryHandler(0);
+	}
+
+	/**
+	 * Gets the session's client and updates its proxy.
+	 */
+	private HttpClient updatedHttpClient() {
+		synchronized (ApacheHttpTransport.class) {
+			HttpClient client = session.getHttpClient();
+			updateClientProxy(client);
+			return client;
+		}
+	}
+
+	/**
+	 * Updates the given client's proxy from the session.
+	 */
+	private void updateClientProxy(HttpClient client) {
+		ProxyInfo proxyInfo = session.getProxyInfo();
+		if (proxyInfo != null && proxyInfo.host != null
+				&& !proxyInfo.host.equals("")) {
+			HttpHost proxy;
+			if (proxyInfo.port < 0) {
+				proxy = new HttpHost(proxyInfo.host);
+			} else {
+				proxy = new HttpHost(proxyInfo.host, proxyInfo.port);
+			}
+			client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
+					proxy);
+		} else {
+			client.getParams().removeParameter(ConnRoutePNames.DEFAULT_PROXY);
+		}
+	}
+}
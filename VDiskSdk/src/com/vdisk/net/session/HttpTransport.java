@@ -0,0 +1,45 @@
+package com.vdisk.net.session;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * 发送HTTP请求的传输层。{@link com.vdisk.net.RESTUtility#execute}通过它发送所有请求，重试、状态码检查等仍由RESTUtility处理，
+ * 可以替换为不同的HTTP实现。
+ *
+ * The transport which sends the HTTP requests of a {@link Session}. Every
+ * request made by {@link com.vdisk.net.RESTUtility#execute} goes through it,
+ * while retries and status code handling stay in RESTUtility, so that the
+ * HTTP stack underneath can be swapped.
+ *
+ * @see ApacheHttpTransport
+ * @see UrlConnectionTransport
+ */
+public interface HttpTransport {
+
+	/**
+	 * Sends the request and returns the response, whose entity streams the
+	 * body. Aborting the request must abort the connection.
+	 *
+	 * @param request
+	 *            the request, with its timeouts set in its params.
+	 * @param context
+	 *            the context of the execution, which is passed to the
+	 *            {@link #getRetryHandler() retry handler}.
+	 * @return the response, or null if the HTTP stack failed without one.
+	 * @throws IOException
+	 *             if the request failed, it may be retried.
+	 */
+	public HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException;
+
+	/**
+	 * Returns the handler which decides whether a failed request is sent
+	 * again.
+	 */
+	public HttpRequestRetryHandler getRetryHandler();
+}
@@ -0,0 +1,209 @@
+package com.vdisk.net.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import com.vdisk.net.session.Session.ProxyInfo;
+
+/**
+ * 使用系统的{@link HttpURLConnection}发送请求。系统的实现自己管理连接池、透明gzip，较新的Android版本上由系统内置的OkHttp实现，
+ * 所有请求共用系统的长连接。
+ *
+ * Sends the requests with the platform's {@link HttpURLConnection}, which
+ * keeps its own pool of kept-alive connections and handles gzip
+ * transparently. On newer Android releases it is backed by the platform's
+ * OkHttp, so many small API calls share a few warm connections instead of the
+ * Apache client's pool. The responses are adapted to {@link HttpResponse},
+ * and aborting the request disconnects it.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+	private final Session session;
+	private final String userAgent;
+	private final int defaultTimeoutMillis;
+	private final HttpRequestRetryHandler retryHandler;
+
+	/**
+	 * @param session
+	 *            the session, whose proxy is used.
+	 * @param userAgent
+	 *            the User-Agent of requests without one.
+	 * @param defaultTimeoutMillis
+	 *            the timeouts of requests without them.
+	 * @param retryHandler
+	 */
+	public UrlConnectionTransport(Session session, String userAgent,
+			int defaultTimeoutMillis, HttpRequestRetryHandler retryHandler) {
+		this.session = session;
+		this.userAgent = userAgent;
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+		this.retryHandler = retryHandler;
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, HttpContext context)
+			throws IOException {
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+
+		URL url = request.getURI().toURL();
+		Proxy proxy = getProxy();
+		final HttpURLConnection conn = (HttpURLConnection) (proxy == null ? url
+				.openConnection() : url.openConnection(proxy));
+
+		if (request instanceof AbortableHttpRequest) {
+			// 中断请求时断开连接 // Disconnect when the request is aborted
+			((AbortableHttpRequest) request)
+					.setReleaseTrigger(new ConnectionReleaseTrigger() {
+						public void releaseConnection() {
+						}
+
+						public void abortConnection() {
+							conn.disconnect();
+						}
+					});
+		}
+
+		HttpParams params = request.getParams();
+		int connectTimeout = HttpConnectionParams.getConnectionTimeout(params);
+		int soTimeout = HttpConnectionParams.getSoTimeout(params);
+		conn.setConnectTimeout(connectTimeout > 0 ? connectTimeout
+				: defaultTimeoutMillis);
+		conn.setReadTimeout(soTimeout > 0 ? soTimeout : defaultTimeoutMillis);
+		conn.setInstanceFollowRedirects(params.getBooleanParameter(
+				ClientPNames.HANDLE_REDIRECTS, false));
+		conn.setRequestMethod(request.getMethod());
+
+		for (Header header : request.getAllHeaders()) {
+			conn.addRequestProperty(header.getName(), header.getValue());
+		}
+		if (userAgent != null && !request.containsHeader(HTTP.USER_AGENT)) {
+			conn.setRequestProperty(HTTP.USER_AGENT, userAgent);
+		}
+
+		HttpEntity requestEntity = null;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+		}
+		try {
+			if (requestEntity != null) {
+				writeEntity(conn, requestEntity);
+			} else {
+				conn.connect();
+			}
+			context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+
+			return readResponse(conn);
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+
+	@Override
+	public HttpRequestRetryHandler getRetryHandler() {
+		return retryHandler;
+	}
+
+	private Proxy getProxy() {
+		ProxyInfo proxyInfo = session.getProxyInfo();
+		if (proxyInfo == null || proxyInfo.host == null
+				|| proxyInfo.host.equals("")) {
+			return null;
+		}
+		return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(
+				proxyInfo.host, proxyInfo.port < 0 ? 80 : proxyInfo.port));
+	}
+
+	private static void writeEntity(HttpURLConnection conn, HttpEntity entity)
+			throws IOException {
+		conn.setDoOutput(true);
+		long length = entity.getContentLength();
+		if (length >= 0 && length <= Integer.MAX_VALUE) {
+			conn.setFixedLengthStreamingMode((int) length);
+		} else {
+			conn.setChunkedStreamingMode(0);
+		}
+		Header contentType = entity.getContentType();
+		if (contentType != null) {
+			conn.setRequestProperty(HTTP.CONTENT_TYPE, contentType.getValue());
+		}
+
+		OutputStream out = conn.getOutputStream();
+		try {
+			entity.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static HttpResponse readResponse(HttpURLConnection conn)
+			throws IOException {
+		int code = conn.getResponseCode();
+		if (code < 0) {
+			throw new IOException("Invalid HTTP response");
+		}
+		BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+				HttpVersion.HTTP_1_1, code, conn.getResponseMessage()));
+
+		for (Map.Entry<String, List<String>> field : conn.getHeaderFields()
+				.entrySet()) {
+			// 状态行的key为null // The status line has a null key
+			if (field.getKey() == null) {
+				continue;
+			}
+			for (String value : field.getValue()) {
+				response.addHeader(field.getKey(), value);
+			}
+		}
+
+		InputStream in = code >= 400 ? conn.getErrorStream() : conn
+				.getInputStream();
+		if (in != null) {
+			BasicHttpEntity entity = new BasicHttpEntity();
+			entity.setContent(in);
+			entity.setContentLength(parseContentLength(conn
+					.getHeaderField(HTTP.CONTENT_LEN)));
+			entity.setContentType(conn.getContentType());
+			entity.setContentEncoding(conn.getContentEncoding());
+			response.setEntity(entity);
+		}
+		return response;
+	}
+
+	private static long parseContentLength(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
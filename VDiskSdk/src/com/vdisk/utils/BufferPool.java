@@ -0,0 +1,62 @@
+package com.vdisk.utils;
+
+import java.util.ArrayList;
+
+/**
+ * 复用固定大小的字节缓冲区，避免每次传输都分配新的缓冲区。
+ *
+ * Reuses byte buffers of a fixed size, so that a transfer doesn't need to
+ * allocate a new buffer each time.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayList<byte[]> buffers = new ArrayList<byte[]>();
+
+	/**
+	 * @param bufferSize
+	 *            the size of each buffer.
+	 * @param maxBuffers
+	 *            the max number of idle buffers kept in the pool.
+	 */
+	public BufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates a new one if the pool is
+	 * empty.
+	 * @return
+	 */
+	public byte[] acquire() {
+		synchronized (buffers) {
+			int size = buffers.size();
+			if (size > 0) {
+				return buffers.remove(size - 1);
+			}
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Puts the buffer back to the pool. The buffer must not be used after it
+	 * is released.
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		synchronized (buffers) {
+			if (buffers.size() < maxBuffers) {
+				buffers.add(buffer);
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
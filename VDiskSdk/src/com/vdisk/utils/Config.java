@@ -1,6 +1,8 @@
 package com.vdisk.utils;
 
 import com.vdisk.net.VDiskAPI;
+import com.vdisk.net.VDiskAPI.SyncPolicy;
+import com.vdisk.net.VDiskAPI.TransportType;
 import com.vdisk.net.session.AbstractSession;
 
 public class Config {
@@ -97,4 +99,386 @@ public class Config {
 		return VDiskAPI.UPLOAD_RESPONSE_TIMEOUT_S;
 	}
 
+	/**
+	 * Set how many segments of a large file are uploaded at the same time.
+	 * Default is 3.
+	 * @param threads
+	 */
+	public static void setUploadSegmentThreads(int threads) {
+		if (threads > 0) {
+			VDiskAPI.UPLOAD_SEGMENT_THREADS = threads;
+		}
+	}
+
+	/**
+	 * Get how many segments of a large file are uploaded at the same time.
+	 * @return
+	 */
+	public static int getUploadSegmentThreads() {
+		return VDiskAPI.UPLOAD_SEGMENT_THREADS;
+	}
+
+	/**
+	 * Set whether the md5 of each segment is computed while the former
+	 * segments are being uploaded. Default is false.
+	 * @param pipeline
+	 */
+	public static void setUploadPipelineMD5(boolean pipeline) {
+		VDiskAPI.UPLOAD_PIPELINE_MD5 = pipeline;
+	}
+
+	/**
+	 * Get whether the md5 of each segment is computed while the former
+	 * segments are being uploaded.
+	 * @return
+	 */
+	public static boolean isUploadPipelineMD5() {
+		return VDiskAPI.UPLOAD_PIPELINE_MD5;
+	}
+
+	/**
+	 * Set how many ranges of a file are downloaded at the same time by
+	 * VDiskAPI.getFileParallel(). Default is 3.
+	 * @param threads
+	 */
+	public static void setDownloadThreads(int threads) {
+		if (threads > 0) {
+			VDiskAPI.DOWNLOAD_THREADS = threads;
+		}
+	}
+
+	/**
+	 * Get how many ranges of a file are downloaded at the same time.
+	 * @return
+	 */
+	public static int getDownloadThreads() {
+		return VDiskAPI.DOWNLOAD_THREADS;
+	}
+
+	/**
+	 * Set the size of each range downloaded by VDiskAPI.getFileParallel(), in
+	 * bytes. Default is 4MB.
+	 * @param size
+	 */
+	public static void setDownloadChunkSize(long size) {
+		if (size > 0) {
+			VDiskAPI.DOWNLOAD_CHUNK_SIZE = size;
+		}
+	}
+
+	/**
+	 * Get the size of each range downloaded by VDiskAPI.getFileParallel().
+	 * @return
+	 */
+	public static long getDownloadChunkSize() {
+		return VDiskAPI.DOWNLOAD_CHUNK_SIZE;
+	}
+
+	/**
+	 * Set whether the md5 (or sha1) of a downloaded file is computed while
+	 * downloading and checked against its metadata. Default is false.
+	 * @param verify
+	 */
+	public static void setDownloadVerify(boolean verify) {
+		VDiskAPI.DOWNLOAD_VERIFY = verify;
+	}
+
+	/**
+	 * Get whether the md5 (or sha1) of a downloaded file is verified.
+	 * @return
+	 */
+	public static boolean isDownloadVerify() {
+		return VDiskAPI.DOWNLOAD_VERIFY;
+	}
+
+	/**
+	 * Set when a downloaded file is synced to disk. Default is
+	 * SyncPolicy.ON_COMPLETION, which syncs a batch of chunks at a time, see
+	 * {@link #setDownloadSyncBatch}; SyncPolicy.ALWAYS syncs every journaled
+	 * chunk, so less is downloaded again after a crash, at the cost of an
+	 * fsync per chunk.
+	 * @param policy
+	 */
+	public static void setDownloadSyncPolicy(SyncPolicy policy) {
+		if (policy != null) {
+			VDiskAPI.DOWNLOAD_SYNC_POLICY = policy;
+		}
+	}
+
+	/**
+	 * Get when a downloaded file is synced to disk.
+	 * @return
+	 */
+	public static SyncPolicy getDownloadSyncPolicy() {
+		return VDiskAPI.DOWNLOAD_SYNC_POLICY;
+	}
+
+	/**
+	 * Set how many chunks, or how many milliseconds of downloading, are synced
+	 * and recorded in the download journal together with
+	 * SyncPolicy.ON_COMPLETION. A killed download loses at most one batch.
+	 * Default is 4 chunks or 10000 milliseconds.
+	 * @param chunks
+	 * @param interval
+	 */
+	public static void setDownloadSyncBatch(int chunks, long interval) {
+		if (chunks > 0) {
+			VDiskAPI.DOWNLOAD_SYNC_BATCH_CHUNKS = chunks;
+		}
+		if (interval > 0) {
+			VDiskAPI.DOWNLOAD_SYNC_INTERVAL = interval;
+		}
+	}
+
+	/**
+	 * Get how many chunks are synced and recorded together with
+	 * SyncPolicy.ON_COMPLETION.
+	 * @return
+	 */
+	public static int getDownloadSyncBatchChunks() {
+		return VDiskAPI.DOWNLOAD_SYNC_BATCH_CHUNKS;
+	}
+
+	/**
+	 * Get how many milliseconds written chunks wait at most before they're
+	 * synced with SyncPolicy.ON_COMPLETION.
+	 * @return
+	 */
+	public static long getDownloadSyncInterval() {
+		return VDiskAPI.DOWNLOAD_SYNC_INTERVAL;
+	}
+
+	/**
+	 * Set how many folders are kept in the metadata cache of a new VDiskAPI,
+	 * 0 to disable the cache. Default is 100.
+	 * @param size
+	 */
+	public static void setMetadataCacheSize(int size) {
+		if (size >= 0) {
+			VDiskAPI.METADATA_CACHE_SIZE = size;
+		}
+	}
+
+	/**
+	 * Get how many folders are kept in the metadata cache of a new VDiskAPI.
+	 * @return
+	 */
+	public static int getMetadataCacheSize() {
+		return VDiskAPI.METADATA_CACHE_SIZE;
+	}
+
+	/**
+	 * Set whether the contents of a folder are kept in a compact, column based
+	 * list, which takes much less memory with big folders. Default is false.
+	 * @param compact
+	 */
+	public static void setCompactListings(boolean compact) {
+		VDiskAPI.COMPACT_LISTINGS = compact;
+	}
+
+	/**
+	 * Get whether the contents of a folder are kept in a compact list.
+	 * @return
+	 */
+	public static boolean isCompactListings() {
+		return VDiskAPI.COMPACT_LISTINGS;
+	}
+
+	/**
+	 * Set how many metadata requests a batch runs at the same time. Default
+	 * is 4.
+	 * @param threads
+	 */
+	public static void setMetadataBatchThreads(int threads) {
+		if (threads > 0) {
+			VDiskAPI.METADATA_BATCH_THREADS = threads;
+		}
+	}
+
+	/**
+	 * Get how many metadata requests a batch runs at the same time.
+	 * @return
+	 */
+	public static int getMetadataBatchThreads() {
+		return VDiskAPI.METADATA_BATCH_THREADS;
+	}
+
+	/**
+	 * Set whether identical requests in flight at the same time are sent
+	 * only once and share the result. The callers then get the same object,
+	 * which they must not modify. Default is false.
+	 * @param coalesce
+	 */
+	public static void setCoalesceRequests(boolean coalesce) {
+		VDiskAPI.COALESCE_REQUESTS = coalesce;
+	}
+
+	/**
+	 * Get whether identical requests in flight are coalesced.
+	 * @return
+	 */
+	public static boolean isCoalesceRequests() {
+		return VDiskAPI.COALESCE_REQUESTS;
+	}
+
+	/**
+	 * Set how many thumbnails a ThumbnailLoader loads at the same time, no
+	 * more than the download connections minus one. Default is 4.
+	 * @param threads
+	 */
+	public static void setThumbnailLoaderThreads(int threads) {
+		if (threads > 0) {
+			VDiskAPI.THUMBNAIL_LOADER_THREADS = threads;
+		}
+	}
+
+	/**
+	 * Get how many thumbnails a ThumbnailLoader loads at the same time.
+	 * @return
+	 */
+	public static int getThumbnailLoaderThreads() {
+		return VDiskAPI.THUMBNAIL_LOADER_THREADS;
+	}
+
+	/**
+	 * Set the transport used by the sessions which have none set. A session
+	 * reads it when it sends its first request, so it only affects the
+	 * sessions which haven't sent any request yet. Default is
+	 * TransportType.HTTP_CLIENT.
+	 * @param type
+	 */
+	public static void setHttpTransport(TransportType type) {
+		if (type != null) {
+			VDiskAPI.HTTP_TRANSPORT = type;
+		}
+	}
+
+	/**
+	 * Get the transport used by the sessions which have none set.
+	 * @return
+	 */
+	public static TransportType getHttpTransport() {
+		return VDiskAPI.HTTP_TRANSPORT;
+	}
+
+	/**
+	 * Set the max pooled connections of a session to the API server, the
+	 * upload server and each download host. Default is 10 for each. It takes
+	 * effect for the hosts a session hasn't connected to yet.
+	 * @param api
+	 * @param upload
+	 * @param download
+	 */
+	public static void setMaxConnectionsPerRoute(int api, int upload,
+			int download) {
+		if (api > 0) {
+			AbstractSession.MAX_API_CONNECTIONS = api;
+		}
+		if (upload > 0) {
+			AbstractSession.MAX_UPLOAD_CONNECTIONS = upload;
+		}
+		if (download > 0) {
+			AbstractSession.MAX_DOWNLOAD_CONNECTIONS = download;
+		}
+	}
+
+	/**
+	 * Get the max pooled connections of a session to the API server.
+	 * @return
+	 */
+	public static int getMaxApiConnections() {
+		return AbstractSession.MAX_API_CONNECTIONS;
+	}
+
+	/**
+	 * Get the max pooled connections of a session to the upload server.
+	 * @return
+	 */
+	public static int getMaxUploadConnections() {
+		return AbstractSession.MAX_UPLOAD_CONNECTIONS;
+	}
+
+	/**
+	 * Get the max pooled connections of a session to each download host.
+	 * @return
+	 */
+	public static int getMaxDownloadConnections() {
+		return AbstractSession.MAX_DOWNLOAD_CONNECTIONS;
+	}
+
+	/**
+	 * Set the max pooled connections of a session in all. Default is 20. It
+	 * takes effect for the sessions whose HttpClient is created later.
+	 * @param max
+	 */
+	public static void setMaxTotalConnections(int max) {
+		if (max > 0) {
+			AbstractSession.MAX_TOTAL_CONNECTIONS = max;
+		}
+	}
+
+	/**
+	 * Get the max pooled connections of a session in all.
+	 * @return
+	 */
+	public static int getMaxTotalConnections() {
+		return AbstractSession.MAX_TOTAL_CONNECTIONS;
+	}
+
+	/**
+	 * Set how long connections are kept alive in seconds, unless the server
+	 * asks for less. Default is 20 seconds.
+	 * @param seconds
+	 */
+	public static void setKeepAliveDuration(int seconds) {
+		if (seconds >= 0) {
+			AbstractSession.KEEP_ALIVE_DURATION_SECS = seconds;
+		}
+	}
+
+	/**
+	 * Get how long connections are kept alive in seconds.
+	 * @return
+	 */
+	public static int getKeepAliveDuration() {
+		return AbstractSession.KEEP_ALIVE_DURATION_SECS;
+	}
+
+	/**
+	 * Set how long an unused pooled connection is kept before it's closed, in
+	 * seconds. Default is 20 seconds.
+	 * @param seconds
+	 */
+	public static void setIdleConnectionTimeout(int seconds) {
+		if (seconds >= 0) {
+			AbstractSession.IDLE_CONNECTION_TIMEOUT_SECS = seconds;
+		}
+	}
+
+	/**
+	 * Get how long an unused pooled connection is kept, in seconds.
+	 * @return
+	 */
+	public static int getIdleConnectionTimeout() {
+		return AbstractSession.IDLE_CONNECTION_TIMEOUT_SECS;
+	}
+
+	/**
+	 * Set the connect and socket timeout of requests in millisecond. Default
+	 * is 30 seconds.
+	 * @param ms
+	 */
+	public static void setRequestTimeout(int ms) {
+		if (ms > 0) {
+			AbstractSession.REQUEST_TIMEOUT_MILLIS = ms;
+		}
+	}
+
+	/**
+	 * Get the connect and socket timeout of requests in millisecond.
+	 * @return
+	 */
+	public static int getRequestTimeout() {
+		return AbstractSession.REQUEST_TIMEOUT_MILLIS;
+	}
 }
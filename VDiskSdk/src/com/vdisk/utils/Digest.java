@@ -5,10 +5,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.vdisk.net.ProgressListener;
 import com.vdisk.net.exception.VDiskException;
 import com.vdisk.net.exception.VDiskFileNotFoundException;
 
@@ -117,7 +125,43 @@ public class Digest {
 	}
 
 	/**
-	 * Get each segment's md5, and return a list.
+	 * Get a segment's md5 of the upload file by positional reads, the position
+	 * of the channel isn't changed, so the channel can be shared by several
+	 * threads.
+	 * @param channel
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws VDiskException
+	 */
+	public static String getMD5(FileChannel channel, long offset, long length)
+			throws VDiskException {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long count = 0;
+			while (count < length) {
+				buffer.clear();
+				if (length - count < buffer.capacity()) {
+					buffer.limit((int) (length - count));
+				}
+				int read = channel.read(buffer, offset + count);
+				if (read < 0) {
+					break;
+				}
+				messageDigest.update(buffer.array(), 0, read);
+				count += read;
+			}
+
+			return toHexString(messageDigest.digest());
+		} catch (Exception e) {
+			throw new VDiskException(e);
+		}
+	}
+
+	/**
+	 * Get each segment's md5, and return a list. The segments are hashed in
+	 * parallel by one thread for each cpu core.
 	 * @param filepath
 	 * @param fileSize
 	 * @return
@@ -126,8 +170,24 @@ public class Digest {
 	public static ArrayList<String> getFileMD5s(String filepath,
 			long fileSize, long segmentLength)
 			throws VDiskException {
-		ArrayList<String> md5s = new ArrayList<String>();
+		return getFileMD5s(filepath, fileSize, segmentLength, Runtime
+				.getRuntime().availableProcessors());
+	}
 
+	/**
+	 * Get each segment's md5 in parallel, and return a list in the order of
+	 * the segments.
+	 * @param filepath
+	 * @param fileSize
+	 * @param segmentLength
+	 * @param parallelism
+	 *            the max number of segments hashed at the same time.
+	 * @return
+	 * @throws VDiskFileNotFoundException
+	 */
+	public static ArrayList<String> getFileMD5s(String filepath,
+			final long fileSize, final long segmentLength, int parallelism)
+			throws VDiskException {
 		int sum;
 
 		if ((fileSize % segmentLength) > 0) {
@@ -136,26 +196,170 @@ public class Digest {
 			sum = (int) (fileSize / segmentLength);
 		}
 
-		long blockSize = 0;
-
+		RandomAccessFile randomAccessFile = null;
+		ExecutorService executor = null;
 		try {
-			RandomAccessFile randomAccessFile = new RandomAccessFile(filepath,
-					"rw");
+			randomAccessFile = new RandomAccessFile(filepath, "r");
+			final FileChannel channel = randomAccessFile.getChannel();
+
+			int threads = Math.max(1, Math.min(parallelism, sum));
+			executor = Executors.newFixedThreadPool(threads);
 
+			ArrayList<Future<String>> futures = new ArrayList<Future<String>>(
+					sum);
 			for (int i = 0; i < sum; i++) {
-				long offset = i * segmentLength;
-				String md5;
-				if (i == sum - 1) {
-					blockSize = fileSize % segmentLength;
-					md5 = getMD5(randomAccessFile, offset, blockSize);
-				} else {
-					md5 = getMD5(randomAccessFile, offset, segmentLength);
-				}
-				md5s.add(md5);
+				final long offset = i * segmentLength;
+				futures.add(executor.submit(new Callable<String>() {
+
+					@Override
+					public String call() throws Exception {
+						return getMD5(channel, offset,
+								Math.min(segmentLength, fileSize - offset));
+					}
+				}));
+			}
+
+			// 按分段顺序收集结果 // Collect the results in the order of segments
+			ArrayList<String> md5s = new ArrayList<String>(sum);
+			for (Future<String> future : futures) {
+				md5s.add(future.get());
 			}
 			return md5s;
 		} catch (FileNotFoundException e) {
 			throw new VDiskFileNotFoundException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof VDiskException) {
+				throw (VDiskException) cause;
+			}
+			throw new VDiskException(cause);
+		} catch (InterruptedException e) {
+			throw new VDiskException(e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			try {
+				if (randomAccessFile != null) {
+					randomAccessFile.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Get the sha1 of a file and each segment's md5 in one read of the file.
+	 * @param filePath
+	 * @param fileSize
+	 * @param segmentLength
+	 * @param listener
+	 *            receives the number of bytes hashed, may be null.
+	 * @return
+	 * @throws VDiskException
+	 */
+	public static FileDigest digestFile(String filePath, long fileSize,
+			long segmentLength, ProgressListener listener)
+			throws VDiskException {
+		InputStream fis = null;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int numRead = 0;
+		try {
+			fis = new FileInputStream(filePath);
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			ArrayList<String> md5s = new ArrayList<String>();
+
+			long intervalMs = listener != null ? listener.progressInterval()
+					: 0;
+			long lastListened = 0;
+			long total = 0;
+			// 当前分段中已读取的字节数 // The number of bytes read in current segment
+			long segmentRead = 0;
+
+			while ((numRead = fis.read(buffer)) > 0) {
+				sha1.update(buffer, 0, numRead);
+
+				// 一次读取可能跨越分段边界 // A read may cross the segment boundary
+				int off = 0;
+				while (off < numRead) {
+					int n = (int) Math.min(numRead - off, segmentLength
+							- segmentRead);
+					md5.update(buffer, off, n);
+					off += n;
+					segmentRead += n;
+					if (segmentRead == segmentLength) {
+						md5s.add(toHexString(md5.digest()));
+						segmentRead = 0;
+					}
+				}
+
+				total += numRead;
+				if (listener != null) {
+					long now = System.currentTimeMillis();
+					if (now - lastListened > intervalMs) {
+						lastListened = now;
+						listener.onProgress(total, fileSize);
+					}
+				}
+			}
+
+			if (segmentRead > 0) {
+				md5s.add(toHexString(md5.digest()));
+			}
+
+			return new FileDigest(toHexString(sha1.digest()), md5s);
+		} catch (FileNotFoundException e) {
+			throw new VDiskFileNotFoundException(e);
+		} catch (Exception e) {
+			throw new VDiskException(e);
+		} finally {
+			try {
+				if (fis != null) {
+					fis.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
+
+	/**
+	 * The sha1 of a file and the md5 of each of its segments.
+	 */
+	public static class FileDigest {
+
+		public final String sha1;
+		public final ArrayList<String> md5s;
+
+		public FileDigest(String sha1, ArrayList<String> md5s) {
+			this.sha1 = sha1;
+			this.md5s = md5s;
+		}
+
+		/**
+		 * Returns all segment's md5 splited by ",".
+		 */
+		public String getMD5s() {
+			return join(md5s);
+		}
+	}
+
+	/**
+	 * Join the md5s to a string separated by ",".
+	 * @param md5s
+	 * @return
+	 */
+	public static String join(ArrayList<String> md5s) {
+		StringBuilder sb = new StringBuilder();
+		int size = md5s.size();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(md5s.get(i));
+		}
+		return sb.toString();
+	}
 }
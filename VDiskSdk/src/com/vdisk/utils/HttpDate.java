@@ -0,0 +1,248 @@
+package com.vdisk.utils;
+
+import java.util.Date;
+
+/**
+ * 解析和格式化RFC 1123格式的日期，如"Wed, 10 Apr 2013 14:24:15 +0800"。只使用静态方法和局部变量，可以在多个线程中同时使用，
+ * 不需要SimpleDateFormat，也不需要加锁。
+ *
+ * Parses and formats RFC 1123 dates such as "Wed, 10 Apr 2013 14:24:15 +0800",
+ * which is the form of the dates returned by the VDisk API. There is no shared
+ * state, so it can be used from several threads at the same time without a
+ * SimpleDateFormat or any locking.
+ */
+public class HttpDate {
+
+	/**
+	 * Returned by {@link #parse(String)} when the date can't be parsed.
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final String[] DAYS = { "Sun", "Mon", "Tue", "Wed", "Thu",
+			"Fri", "Sat" };
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr",
+			"May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private HttpDate() {
+	}
+
+	/**
+	 * Parses a date into milliseconds since the epoch. The day of week is
+	 * optional, the zone may be "+hhmm", "-hhmm", "GMT", "UTC" or "Z".
+	 *
+	 * @param date
+	 * @return the time, or {@link #INVALID} if it can't be parsed.
+	 */
+	public static long parse(String date) {
+		if (date == null) {
+			return INVALID;
+		}
+
+		int length = date.length();
+		int pos = skipSpaces(date, 0);
+
+		// 可选的星期 // Optional day of week
+		if (pos < length && Character.isLetter(date.charAt(pos))) {
+			while (pos < length && Character.isLetter(date.charAt(pos))) {
+				pos++;
+			}
+			if (pos >= length || date.charAt(pos) != ',') {
+				return INVALID;
+			}
+			pos = skipSpaces(date, pos + 1);
+		}
+
+		int end = skipDigits(date, pos);
+		if (end == pos || end - pos > 2) {
+			return INVALID;
+		}
+		int day = parseInt(date, pos, end);
+		pos = skipSpaces(date, end);
+
+		if (pos + 3 > length) {
+			return INVALID;
+		}
+		int month = -1;
+		for (int i = 0; i < MONTHS.length; i++) {
+			if (date.regionMatches(true, pos, MONTHS[i], 0, 3)) {
+				month = i + 1;
+				break;
+			}
+		}
+		if (month < 0) {
+			return INVALID;
+		}
+		pos = skipSpaces(date, pos + 3);
+
+		end = skipDigits(date, pos);
+		if (end - pos != 4) {
+			return INVALID;
+		}
+		int year = parseInt(date, pos, end);
+		pos = skipSpaces(date, end);
+
+		if (pos + 8 > length || date.charAt(pos + 2) != ':'
+				|| date.charAt(pos + 5) != ':'
+				|| skipDigits(date, pos) != pos + 2
+				|| skipDigits(date, pos + 3) != pos + 5
+				|| skipDigits(date, pos + 6) != pos + 8) {
+			return INVALID;
+		}
+		int hour = parseInt(date, pos, pos + 2);
+		int minute = parseInt(date, pos + 3, pos + 5);
+		int second = parseInt(date, pos + 6, pos + 8);
+		pos = skipSpaces(date, pos + 8);
+
+		int offset = parseZone(date, pos);
+		if (offset == Integer.MIN_VALUE || day < 1 || day > 31 || hour > 24
+				|| minute > 59 || second > 60) {
+			return INVALID;
+		}
+
+		long seconds = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute)
+				* 60 + second;
+		return (seconds - offset * 60L) * 1000;
+	}
+
+	/**
+	 * Parses a date into a {@link Date}.
+	 *
+	 * @param date
+	 * @return the date, or null if it can't be parsed.
+	 */
+	public static Date parseDate(String date) {
+		long time = parse(date);
+		return time == INVALID ? null : new Date(time);
+	}
+
+	/**
+	 * Returns the zone offset at the end of a date in minutes, 0 if there is
+	 * no offset.
+	 */
+	public static int parseOffset(String date) {
+		if (date == null) {
+			return 0;
+		}
+		int pos = date.lastIndexOf(' ') + 1;
+		int offset = parseZone(date, pos);
+		return offset == Integer.MIN_VALUE ? 0 : offset;
+	}
+
+	/**
+	 * Formats the time in GMT, e.g. "Wed, 10 Apr 2013 06:24:15 +0000".
+	 */
+	public static String format(long time) {
+		return format(time, 0);
+	}
+
+	/**
+	 * Formats the time in the zone with the given offset, e.g.
+	 * "Wed, 10 Apr 2013 14:24:15 +0800".
+	 *
+	 * @param time
+	 *            milliseconds since the epoch.
+	 * @param offset
+	 *            the zone offset in minutes.
+	 */
+	public static String format(long time, int offset) {
+		long local = floorDiv(time, 1000) + offset * 60L;
+		long days = floorDiv(local, 86400);
+		long seconds = local - days * 86400;
+
+		// 公历日期，算法见 http://howardhinnant.github.io/date_algorithms.html
+		// Civil date, see http://howardhinnant.github.io/date_algorithms.html
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long day = doy - (153 * mp + 2) / 5 + 1;
+		long month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		int dayOfWeek = (int) ((days % 7 + 11) % 7);
+
+		int absOffset = Math.abs(offset);
+		StringBuilder sb = new StringBuilder(31);
+		sb.append(DAYS[dayOfWeek]).append(", ");
+		pad(sb, day);
+		sb.append(' ').append(MONTHS[(int) month - 1]).append(' ')
+				.append(year).append(' ');
+		pad(sb, seconds / 3600);
+		sb.append(':');
+		pad(sb, seconds / 60 % 60);
+		sb.append(':');
+		pad(sb, seconds % 60);
+		sb.append(' ').append(offset < 0 ? '-' : '+');
+		pad(sb, absOffset / 60);
+		pad(sb, absOffset % 60);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the offset in minutes of the zone starting at pos, or
+	 * Integer.MIN_VALUE.
+	 */
+	private static int parseZone(String date, int pos) {
+		int length = date.length();
+		if (pos + 5 == length
+				&& (date.charAt(pos) == '+' || date.charAt(pos) == '-')
+				&& skipDigits(date, pos + 1) == length) {
+			int minutes = parseInt(date, pos + 1, pos + 3) * 60
+					+ parseInt(date, pos + 3, pos + 5);
+			return date.charAt(pos) == '-' ? -minutes : minutes;
+		}
+		if (date.regionMatches(true, pos, "GMT", 0, 3) && pos + 3 == length
+				|| date.regionMatches(true, pos, "UTC", 0, 3)
+				&& pos + 3 == length
+				|| date.regionMatches(true, pos, "Z", 0, 1)
+				&& pos + 1 == length) {
+			return 0;
+		}
+		return Integer.MIN_VALUE;
+	}
+
+	private static long daysFromCivil(long year, long month, long day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yoe = year - era * 400;
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day
+				- 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+
+	private static int skipSpaces(String s, int pos) {
+		while (pos < s.length() && s.charAt(pos) == ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int skipDigits(String s, int pos) {
+		while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int parseInt(String s, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (s.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private static void pad(StringBuilder sb, long value) {
+		if (value < 10) {
+			sb.append('0');
+		}
+		sb.append(value);
+	}
+}
@@ -0,0 +1,100 @@
+package com.vdisk.utils;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 合并相同的并发调用：同一个key同时只执行一次，其它线程等待并共享它的结果或异常。
+ *
+ * Coalesces identical concurrent calls: for each key only one call runs at a
+ * time, and the other threads asking for the same key wait for it and share
+ * its result or exception. A call which starts after the previous one finished
+ * runs again, nothing is cached.
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the results.
+ */
+public class SingleFlight<K, V> {
+
+	private static final class Flight<V> {
+		final CountDownLatch done = new CountDownLatch(1);
+		V value;
+		Throwable error;
+	}
+
+	private final HashMap<K, Flight<V>> flights = new HashMap<K, Flight<V>>();
+
+	private long callCount;
+	private long sharedCount;
+
+	/**
+	 * Runs the call, or waits for the call with the same key already running
+	 * and returns its result.
+	 *
+	 * @param key
+	 * @param call
+	 * @return the result of the call.
+	 * @throws Exception
+	 *             the exception thrown by the call, or InterruptedException if
+	 *             this thread is interrupted while waiting.
+	 */
+	public V execute(K key, Callable<V> call) throws Exception {
+		Flight<V> flight;
+		boolean isLeader = false;
+		synchronized (flights) {
+			flight = flights.get(key);
+			if (flight == null) {
+				flight = new Flight<V>();
+				flights.put(key, flight);
+				isLeader = true;
+				callCount++;
+			} else {
+				sharedCount++;
+			}
+		}
+
+		if (isLeader) {
+			try {
+				flight.value = call.call();
+			} catch (Throwable e) {
+				flight.error = e;
+			} finally {
+				synchronized (flights) {
+					flights.remove(key);
+				}
+				flight.done.countDown();
+			}
+		} else {
+			flight.done.await();
+		}
+
+		if (flight.error instanceof Exception) {
+			throw (Exception) flight.error;
+		} else if (flight.error instanceof Error) {
+			throw (Error) flight.error;
+		}
+		return flight.value;
+	}
+
+	/**
+	 * Returns how many calls have been run.
+	 */
+	public long getCallCount() {
+		synchronized (flights) {
+			return callCount;
+		}
+	}
+
+	/**
+	 * Returns how many times a running call's result has been shared instead
+	 * of running the call again.
+	 */
+	public long getSharedCount() {
+		synchronized (flights) {
+			return sharedCount;
+		}
+	}
+}